@@ -0,0 +1,469 @@
+package com.bittorrentclient.controller;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.bittorrentclient.model.Announce;
+import com.bittorrentclient.model.PieceManager;
+import com.bittorrentclient.model.TrackerResponse;
+import com.bittorrentclient.services.HttpTracker;
+import com.bittorrentclient.services.TimerWheel;
+import com.bittorrentclient.services.UdpTracker;
+
+/**
+ * Keeps the tracker of every download up to date. A download is announced
+ * with <code>started</code> when it is added, again every interval the
+ * tracker asks for, with <code>completed</code> when its last piece is
+ * verified and with <code>stopped</code> when it is removed. While a download
+ * has fewer than {@link #DEFAULT_LOW_PEERS} connections it is announced
+ * early to get more peers, but never sooner after the last announce than
+ * the tracker's minimum interval.
+ *
+ * The timers of all downloads share one {@link TimerWheel} thread, and the
+ * announces to HTTP trackers, which wait on the network, run on a small
+ * pool, so hundreds of downloads take no more threads than one. Announces to
+ * UDP trackers do not wait at all: they all go out through one
+ * {@link UdpTracker} and are finished off when the reply comes. A failed
+ * announce is retried after {@link #RETRY_INTERVAL}, doubling with every
+ * failure in a row up to the regular interval.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class AnnounceScheduler {
+
+	/**
+	 * Receives the peers of each successful announce.
+	 */
+	public interface Listener {
+		void peersReceived(Download download, List<InetSocketAddress> peers);
+	}
+
+	public static final int DEFAULT_LOW_PEERS = 10;
+
+	// used when the tracker does not say, in milliseconds
+	private static final int DEFAULT_INTERVAL = 1800000;
+	private static final int DEFAULT_MIN_INTERVAL = 60000;
+
+	private static final int RETRY_INTERVAL = 30000;
+
+	// how often a download short of peers is looked at
+	private static final int CHECK_INTERVAL = 5000;
+
+	private static final int TICK = 1000;
+
+	// one turn of the wheel is a little over the usual 30 minute interval
+	private static final int SLOTS = 2048;
+
+	private static final int ANNOUNCE_THREADS = 4;
+
+	/*
+	 * Where a download stands with its tracker. Guarded by itself.
+	 */
+	private static class Tracker {
+		final Download download;
+		final PieceManager pieceManager;
+		// the event still to be sent, if any
+		String event;
+		String trackerId;
+		long lastAttempt;
+		long nextAnnounce;
+		long interval = DEFAULT_INTERVAL;
+		long minInterval = DEFAULT_MIN_INTERVAL;
+		int failures;
+		boolean complete;
+		boolean started;
+		boolean announcing;
+		boolean removed;
+		TimerWheel.Timeout timeout;
+
+		Tracker(Download download, PieceManager pieceManager) {
+			this.download = download;
+			this.pieceManager = pieceManager;
+		}
+	}
+
+	private final byte[] peerId;
+
+	private final int port;
+
+	private final PeerEngine engine;
+
+	private final Listener listener;
+
+	private final HttpTracker httpTracker;
+
+	private final UdpTracker udpTracker;
+
+	private final TimerWheel wheel = new TimerWheel("announce-timer", TICK,
+			SLOTS);
+
+	private final ExecutorService announcer = Executors.newFixedThreadPool(
+			ANNOUNCE_THREADS, new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "announce");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Map<PieceManager, Tracker> trackers = new ConcurrentHashMap<PieceManager, Tracker>();
+
+	private volatile int lowPeers = DEFAULT_LOW_PEERS;
+
+	// sends completed once a download's last piece is verified
+	private final PieceManager.Listener completionListener = new PieceManager.Listener() {
+		public void pieceCompleted(PieceManager pieceManager, int index) {
+			Tracker tracker = trackers.get(pieceManager);
+			if (tracker == null || !pieceManager.isComplete()) {
+				return;
+			}
+			synchronized (tracker) {
+				if (tracker.complete) {
+					return;
+				}
+				tracker.complete = true;
+				if (tracker.started) {
+					tracker.event = Announce.EVENT_COMPLETED;
+				}
+				schedule(tracker, nextDelay(tracker,
+						System.currentTimeMillis()));
+			}
+		}
+	};
+
+	/**
+	 * @param port
+	 *            the port peers are told to connect to.
+	 * @param engine
+	 *            counts each download's connections.
+	 * @param timeout
+	 *            how long to wait for a tracker to answer, in milliseconds.
+	 */
+	public AnnounceScheduler(byte[] peerId, int port, PeerEngine engine,
+			Listener listener, int timeout) throws IOException {
+		super();
+		this.peerId = peerId;
+		this.port = port;
+		this.engine = engine;
+		this.listener = listener;
+		this.httpTracker = new HttpTracker(timeout);
+		this.udpTracker = new UdpTracker();
+	}
+
+	public void start() {
+		wheel.start();
+	}
+
+	/**
+	 * Sets the number of connections below which a download is announced
+	 * early.
+	 */
+	public void setLowPeers(int lowPeers) {
+		this.lowPeers = lowPeers;
+	}
+
+	/**
+	 * Starts announcing <code>download</code>, which must be open. If it
+	 * already has a tracker response, from an announce made before it was
+	 * added, the next announce is a regular one at the end of that
+	 * response's interval; otherwise <code>started</code> is sent now.
+	 */
+	public void add(Download download) {
+		String url = download.getTorrentFile().tracker_url;
+		if (url == null || !(url.startsWith("http://")
+				|| url.startsWith("https://") || isUdp(url))) {
+			System.err.println("Error: cannot announce to tracker " + url);
+			return;
+		}
+		PieceManager pieceManager = download.getPieceManager();
+		Tracker tracker = new Tracker(download, pieceManager);
+		synchronized (tracker) {
+			tracker.complete = pieceManager.isComplete();
+			TrackerResponse response = download.getTrackerResponse();
+			if (response != null) {
+				tracker.started = true;
+				received(tracker, response, download.getAnnouncedAt());
+			} else {
+				tracker.event = Announce.EVENT_STARTED;
+			}
+			trackers.put(pieceManager, tracker);
+			pieceManager.addListener(completionListener);
+			schedule(tracker, nextDelay(tracker, System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Stops announcing <code>download</code> and tells its tracker it has
+	 * stopped. Returns immediately.
+	 */
+	public void remove(Download download) {
+		stop(download.getPieceManager());
+	}
+
+	/*
+	 * Stops the tracker of a download and sends stopped, after completed if
+	 * the download was finished but that had not been sent yet.
+	 */
+	private void stop(PieceManager pieceManager) {
+		final Tracker tracker = removeTracker(pieceManager);
+		if (tracker == null) {
+			return;
+		}
+		final boolean completed;
+		synchronized (tracker) {
+			if (!tracker.started) {
+				return;
+			}
+			completed = Announce.EVENT_COMPLETED.equals(tracker.event)
+					&& !tracker.announcing;
+		}
+		announcer.execute(new Runnable() {
+			public void run() {
+				if (completed) {
+					announce(tracker, Announce.EVENT_COMPLETED);
+				}
+				announce(tracker, Announce.EVENT_STOPPED);
+			}
+		});
+	}
+
+	private Tracker removeTracker(PieceManager pieceManager) {
+		if (pieceManager == null) {
+			return null;
+		}
+		Tracker tracker = trackers.remove(pieceManager);
+		if (tracker == null) {
+			return null;
+		}
+		pieceManager.removeListener(completionListener);
+		synchronized (tracker) {
+			tracker.removed = true;
+			if (tracker.timeout != null) {
+				tracker.timeout.cancel();
+			}
+		}
+		return tracker;
+	}
+
+	/**
+	 * Sends <code>stopped</code> for every download, waiting at most
+	 * <code>timeout</code> milliseconds for the trackers, and stops the
+	 * scheduler's threads.
+	 */
+	public void shutdown(long timeout) {
+		wheel.shutdown();
+		for (PieceManager pieceManager : trackers.keySet()) {
+			stop(pieceManager);
+		}
+		announcer.shutdown();
+		try {
+			if (!announcer.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+				announcer.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			announcer.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		udpTracker.close();
+	}
+
+	/*
+	 * Replaces the tracker's timer with one running due() after delay.
+	 * Called with the tracker's lock held.
+	 */
+	private void schedule(final Tracker tracker, long delay) {
+		if (tracker.removed || tracker.announcing) {
+			// announce() schedules the next one when it is done
+			return;
+		}
+		if (tracker.timeout != null) {
+			tracker.timeout.cancel();
+		}
+		tracker.timeout = wheel.schedule(new Runnable() {
+			public void run() {
+				due(tracker);
+			}
+		}, delay);
+	}
+
+	/*
+	 * Returns how long until the tracker's timer should next expire: now for
+	 * an event to send, unless announces are failing and being retried, and
+	 * otherwise at the next regular announce, or sooner while the download is
+	 * unfinished so its peers can be counted. Called with the tracker's lock
+	 * held.
+	 */
+	private static long nextDelay(Tracker tracker, long now) {
+		if (tracker.event != null && tracker.failures == 0) {
+			return 0;
+		}
+		long next = tracker.nextAnnounce;
+		if (!tracker.complete && tracker.failures == 0) {
+			next = Math.min(next, now + CHECK_INTERVAL);
+		}
+		return next - now;
+	}
+
+	/*
+	 * Runs on the wheel's thread when a tracker's timer expires: announces
+	 * if an event or the regular announce is due, or early if the download is
+	 * short of peers, and otherwise sets the next timer.
+	 */
+	private void due(final Tracker tracker) {
+		synchronized (tracker) {
+			if (tracker.removed || tracker.announcing) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			boolean early = !tracker.complete
+					&& tracker.failures == 0
+					&& engine.getConnectionCount(tracker.pieceManager) < lowPeers
+					&& now >= tracker.lastAttempt + tracker.minInterval;
+			if (nextDelay(tracker, now) > 0 && !early) {
+				schedule(tracker, nextDelay(tracker, now));
+				return;
+			}
+			tracker.announcing = true;
+			final String event = tracker.event;
+			if (isUdp(tracker.download.getTorrentFile().tracker_url)) {
+				// many can be in flight on the one channel; nothing blocks
+				announceUdp(tracker, event);
+				return;
+			}
+			announcer.execute(new Runnable() {
+				public void run() {
+					announce(tracker, event);
+				}
+			});
+		}
+	}
+
+	/*
+	 * Sends one announce, waiting for the answer, and schedules the next.
+	 * Runs on the pool.
+	 */
+	private void announce(Tracker tracker, String event) {
+		String url = tracker.download.getTorrentFile().tracker_url;
+		Announce announce = request(tracker, event);
+		TrackerResponse response = null;
+		String failure = null;
+		try {
+			if (isUdp(url)) {
+				response = udpTracker.announce(url, announce);
+			} else {
+				response = httpTracker.announce(url, announce);
+			}
+		} catch (Exception e) {
+			failure = e.getMessage();
+		}
+		answered(tracker, event, response, failure);
+	}
+
+	/*
+	 * Sends one announce to a UDP tracker without waiting; the answer
+	 * schedules the next.
+	 */
+	private void announceUdp(final Tracker tracker, final String event) {
+		udpTracker.announce(tracker.download.getTorrentFile().tracker_url,
+				request(tracker, event), new UdpTracker.Callback() {
+					public void completed(TrackerResponse response) {
+						answered(tracker, event, response, null);
+					}
+
+					public void failed(IOException e) {
+						answered(tracker, event, null, e.getMessage());
+					}
+				});
+	}
+
+	private Announce request(Tracker tracker, String event) {
+		PieceManager pieceManager = tracker.pieceManager;
+		Announce announce = new Announce(tracker.download.getTorrentFile()
+				.info_hash_as_binary, peerId, port);
+		announce.uploaded = pieceManager.getUploadedBytes();
+		announce.downloaded = pieceManager.getDownloadedBytes();
+		announce.left = pieceManager.getLeftBytes();
+		announce.event = event;
+		if (Announce.EVENT_STOPPED.equals(event)) {
+			announce.numwant = 0;
+		}
+		synchronized (tracker) {
+			announce.tracker_id = tracker.trackerId;
+			tracker.lastAttempt = System.currentTimeMillis();
+		}
+		return announce;
+	}
+
+	/*
+	 * Takes in the outcome of an announce: a response, possibly a failure,
+	 * or the reason the tracker could not be reached.
+	 */
+	private void answered(Tracker tracker, String event,
+			TrackerResponse response, String failure) {
+		Download download = tracker.download;
+		if (failure == null && response.isFailure()) {
+			failure = response.failure_reason;
+		} else if (failure == null && response.warning_message != null) {
+			System.out.println("Tracker warning: " + response.warning_message);
+		}
+		if (Announce.EVENT_STOPPED.equals(event)) {
+			return;
+		}
+		if (failure != null) {
+			System.err.println("Error: announce of "
+					+ download.getTorrentFile().name + " failed: " + failure);
+		}
+		synchronized (tracker) {
+			long now = System.currentTimeMillis();
+			if (failure == null) {
+				if (event != null && event.equals(tracker.event)) {
+					// unless completed came in while started was sent
+					tracker.event = null;
+				}
+				tracker.started = true;
+				received(tracker, response, now);
+				download.setTrackerResponse(response, now);
+			} else {
+				tracker.failures++;
+				tracker.nextAnnounce = now
+						+ Math.min(tracker.interval, (long) RETRY_INTERVAL
+								<< Math.min(tracker.failures - 1, 16));
+			}
+			tracker.announcing = false;
+			schedule(tracker, nextDelay(tracker, now));
+		}
+		if (failure == null && !tracker.removed) {
+			listener.peersReceived(download, response.peers);
+		}
+	}
+
+	private static boolean isUdp(String url) {
+		return url.startsWith("udp://");
+	}
+
+	/*
+	 * Takes the intervals from a successful response received at
+	 * <code>at</code>. Called with the tracker's lock held.
+	 */
+	private static void received(Tracker tracker, TrackerResponse response,
+			long at) {
+		tracker.failures = 0;
+		tracker.lastAttempt = at;
+		if (response.tracker_id != null) {
+			tracker.trackerId = response.tracker_id;
+		}
+		tracker.interval = response.interval > 0 ? response.interval * 1000L
+				: DEFAULT_INTERVAL;
+		tracker.minInterval = Math.min(tracker.interval,
+				response.min_interval > 0 ? response.min_interval * 1000L
+						: DEFAULT_MIN_INTERVAL);
+		tracker.nextAnnounce = at + tracker.interval;
+	}
+}
@@ -0,0 +1,119 @@
+package com.bittorrentclient.controller;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.bittorrentclient.services.BencodeDecoder;
+import com.bittorrentclient.services.BencodeDictionary;
+import com.bittorrentclient.services.BencodeEncoder;
+import com.bittorrentclient.services.BencodeReader;
+
+/**
+ * Measures the bencode codec on a .torrent file: decoding the whole document,
+ * reading a few fields through the lazy view, streaming over it with the pull
+ * parser, and encoding the decoded document again. Run with the path of a
+ * .torrent file, or without arguments to use a generated multi-file torrent
+ * with 2000 files and 20000 pieces.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class BencodeBenchmark {
+
+	private static final int ROUNDS = 5;
+
+	private static final long MIN_NANOS = 500000000L;
+
+	// keeps the JIT from discarding the work
+	private static long sink;
+
+	private interface Operation {
+		void run(ByteBuffer data) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final ByteBuffer data = args.length > 0 ? ByteBuffer.wrap(Files
+				.readAllBytes(Paths.get(args[0]))) : generateTorrent();
+		final Object decoded = BencodeDecoder.decode(data);
+		System.out.println(data.remaining() + " bytes");
+
+		for (int round = 0; round < ROUNDS; round++) {
+			run("BencodeDecoder.decode", data, new Operation() {
+				public void run(ByteBuffer data) throws Exception {
+					sink += BencodeDecoder.decode(data).hashCode();
+				}
+			});
+			run("BencodeDictionary announce/info", data, new Operation() {
+				public void run(ByteBuffer data) throws Exception {
+					BencodeDictionary torrent = new BencodeDictionary(data);
+					BencodeDictionary info = torrent.getDictionary("info");
+					sink += torrent.getBytes("announce").remaining()
+							+ info.getLong("piece length")
+							+ info.getEncoded().remaining();
+				}
+			});
+			run("BencodeReader skip", data, new Operation() {
+				public void run(ByteBuffer data) throws Exception {
+					BencodeReader reader = new BencodeReader(
+							new ByteArrayInputStream(data.array(),
+									data.arrayOffset() + data.position(),
+									data.remaining()));
+					reader.next();
+					reader.skipRest();
+				}
+			});
+			run("BencodeEncoder.encode", data, new Operation() {
+				public void run(ByteBuffer data) throws Exception {
+					sink += BencodeEncoder.encode(decoded).remaining();
+				}
+			});
+		}
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	private static void run(String name, ByteBuffer data, Operation operation)
+			throws Exception {
+		long operations = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			operation.run(data);
+			operations++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < MIN_NANOS);
+		double micros = elapsed / 1e3 / operations;
+		System.out.println(String.format("%-32s %10.1f us/op %8.1f MB/s",
+				name, micros, data.remaining() / micros));
+	}
+
+	private static ByteBuffer generateTorrent() throws Exception {
+		Random random = new Random(42);
+		List<Object> files = new ArrayList<Object>();
+		for (int i = 0; i < 2000; i++) {
+			Map<String, Object> file = new TreeMap<String, Object>();
+			file.put("length", Long.valueOf(random.nextInt(1 << 30)));
+			file.put("path", Arrays.asList("directory" + i % 50, "file" + i));
+			files.add(file);
+		}
+		byte[] pieces = new byte[20 * 20000];
+		random.nextBytes(pieces);
+		Map<String, Object> info = new TreeMap<String, Object>();
+		info.put("files", files);
+		info.put("name", "generated");
+		info.put("piece length", Long.valueOf(1 << 18));
+		info.put("pieces", pieces);
+		Map<String, Object> torrent = new TreeMap<String, Object>();
+		torrent.put("announce", "http://127.0.0.1:6969/announce");
+		torrent.put("info", info);
+		return BencodeEncoder.encode(torrent);
+	}
+}
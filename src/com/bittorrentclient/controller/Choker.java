@@ -0,0 +1,101 @@
+package com.bittorrentclient.controller;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides which peers of one download we upload to, the tit-for-tat way.
+ * Every {@link #ROUND_INTERVAL} the interested peers that gave us the most,
+ * measured by the rate they send to us, are unchoked; once the download is
+ * complete the peers that take the most from us are preferred instead,
+ * since they spread the data fastest. Every {@link #OPTIMISTIC_ROUNDS}
+ * rounds one more choked peer is picked at random and unchoked as well, so
+ * new peers get a chance to show what they give back and we may find better
+ * partners than the current ones.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+class Choker {
+
+	public static final int DEFAULT_UPLOAD_SLOTS = 4;
+
+	public static final int ROUND_INTERVAL = 10000;
+
+	// the optimistic unchoke moves on every third round, i.e. every 30 s
+	public static final int OPTIMISTIC_ROUNDS = 3;
+
+	private final int uploadSlots;
+
+	private final Random random = new Random();
+
+	private PeerConnection optimistic;
+
+	private int rounds;
+
+	Choker(int uploadSlots) {
+		super();
+		this.uploadSlots = uploadSlots;
+	}
+
+	/**
+	 * Returns the peers to unchoke among <code>connections</code>; every
+	 * other connection should be choked.
+	 *
+	 * @param regular
+	 *            true for the rounds run every {@link #ROUND_INTERVAL}, which
+	 *            sample the peers' rates and rotate the optimistic unchoke;
+	 *            false when a peer became interested in between and the
+	 *            slots are handed out again on the current rates.
+	 */
+	Set<PeerConnection> choose(Collection<PeerConnection> connections,
+			final boolean seeding, boolean regular, long now) {
+		List<PeerConnection> interested = new ArrayList<PeerConnection>();
+		for (PeerConnection connection : connections) {
+			if (regular) {
+				connection.getDownloadMeter().sample(now);
+				connection.getUploadMeter().sample(now);
+			}
+			if (connection.isPeerInterested()) {
+				interested.add(connection);
+			}
+		}
+		Collections.sort(interested, new Comparator<PeerConnection>() {
+			public int compare(PeerConnection a, PeerConnection b) {
+				return Double.compare(rate(b, seeding), rate(a, seeding));
+			}
+		});
+		Set<PeerConnection> unchoked = new HashSet<PeerConnection>(
+				interested.subList(0, Math.min(uploadSlots,
+						interested.size())));
+
+		if (regular) {
+			rounds++;
+		}
+		if (optimistic == null || !interested.contains(optimistic)
+				|| unchoked.contains(optimistic)
+				|| (regular && rounds % OPTIMISTIC_ROUNDS == 0)) {
+			// the optimistic peer left, lost interest, earned a regular slot
+			// or has had its turn
+			List<PeerConnection> choked = new ArrayList<PeerConnection>(
+					interested);
+			choked.removeAll(unchoked);
+			optimistic = choked.isEmpty() ? null
+					: choked.get(random.nextInt(choked.size()));
+		}
+		if (optimistic != null) {
+			unchoked.add(optimistic);
+		}
+		return unchoked;
+	}
+
+	private static double rate(PeerConnection connection, boolean seeding) {
+		return seeding ? connection.getUploadMeter().getRate()
+				: connection.getDownloadMeter().getRate();
+	}
+}
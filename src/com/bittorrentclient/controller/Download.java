@@ -0,0 +1,239 @@
+package com.bittorrentclient.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+
+import com.bittorrentclient.model.PieceManager;
+import com.bittorrentclient.model.TorrentFile;
+import com.bittorrentclient.model.TrackerResponse;
+import com.bittorrentclient.services.FileChannelStorage;
+import com.bittorrentclient.services.MappedFileStorage;
+import com.bittorrentclient.services.MultiFileStorage;
+import com.bittorrentclient.services.PieceStorage;
+import com.bittorrentclient.services.PieceVerifier;
+import com.bittorrentclient.services.RateLimiter;
+import com.bittorrentclient.services.ResumeFile;
+
+/**
+ * The local side of one torrent: where its data is stored, its
+ * {@link PieceManager} and its resume file. Opening a download continues from
+ * the resume file if there is a valid one, or checks whatever data is already
+ * on disk against the piece hashes.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class Download {
+
+	// how often the progress of a download is saved to its resume file
+	public static final int RESUME_INTERVAL = 30000;
+
+	private final TorrentFile torrentFile;
+
+	private final File output;
+
+	private final boolean mapped;
+
+	private ResumeFile resumeFile;
+
+	private volatile PieceManager pieceManager;
+
+	private volatile List<InetSocketAddress> peers = Collections.emptyList();
+
+	private final RateLimiter downloadLimiter = new RateLimiter(
+			RateLimiter.UNLIMITED, null);
+
+	private final RateLimiter uploadLimiter = new RateLimiter(
+			RateLimiter.UNLIMITED, null);
+
+	private long lastSaved;
+
+	private volatile TrackerResponse trackerResponse;
+
+	private volatile long announcedAt;
+
+	/**
+	 * @param output
+	 *            the file to store a single-file torrent in, or the directory
+	 *            to store the files of a multi-file torrent in.
+	 * @param mapped
+	 *            whether a single-file torrent is stored in a memory mapping
+	 *            rather than with positional writes.
+	 */
+	public Download(TorrentFile torrentFile, File output, boolean mapped) {
+		super();
+		this.torrentFile = torrentFile;
+		this.output = output.getAbsoluteFile();
+		this.mapped = mapped;
+	}
+
+	public TorrentFile getTorrentFile() {
+		return torrentFile;
+	}
+
+	/**
+	 * Returns the PieceManager, or null until the download has been opened.
+	 */
+	public PieceManager getPieceManager() {
+		return pieceManager;
+	}
+
+	/**
+	 * Returns the peers to download from, as last reported by the tracker.
+	 */
+	public List<InetSocketAddress> getPeers() {
+		return peers;
+	}
+
+	public void setPeers(List<InetSocketAddress> peers) {
+		this.peers = Collections.unmodifiableList(peers);
+	}
+
+	/**
+	 * Returns the tracker's last successful response, or null if the torrent
+	 * has not been announced yet.
+	 */
+	public TrackerResponse getTrackerResponse() {
+		return trackerResponse;
+	}
+
+	/**
+	 * Returns when the tracker's last response was received, as given by
+	 * System.currentTimeMillis().
+	 */
+	public long getAnnouncedAt() {
+		return announcedAt;
+	}
+
+	public void setTrackerResponse(TrackerResponse trackerResponse,
+			long announcedAt) {
+		this.announcedAt = announcedAt;
+		this.trackerResponse = trackerResponse;
+	}
+
+	/**
+	 * Returns the limiter of the torrent's download rate. Set its rate to cap
+	 * this torrent; a session chains it to the global limiter.
+	 */
+	public RateLimiter getDownloadLimiter() {
+		return downloadLimiter;
+	}
+
+	/**
+	 * Returns the limiter of the torrent's upload rate.
+	 */
+	public RateLimiter getUploadLimiter() {
+		return uploadLimiter;
+	}
+
+	/**
+	 * Returns the files holding the torrent's data: the output file, or for a
+	 * multi-file torrent its files inside the output directory.
+	 */
+	public File[] getDataFiles() {
+		if (!torrentFile.multi_file) {
+			return new File[] { output };
+		}
+		File[] files = new File[torrentFile.file_paths.size()];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = new File(output, torrentFile.file_paths.get(i));
+		}
+		return files;
+	}
+
+	/**
+	 * Opens the storage of the torrent's data. A single file is allocated to
+	 * the full size of the torrent, so blocks can be written where they
+	 * belong as soon as they arrive; the files of a multi-file torrent are
+	 * created as they are first written.
+	 */
+	public PieceStorage openStorage() throws IOException {
+		if (torrentFile.multi_file) {
+			return new MultiFileStorage(getDataFiles(),
+					torrentFile.file_lengths);
+		}
+		if (mapped) {
+			return new MappedFileStorage(output, torrentFile.file_length);
+		}
+		return new FileChannelStorage(output, torrentFile.file_length);
+	}
+
+	/**
+	 * Creates the PieceManager, continuing from the resume file if there is a
+	 * valid one. Otherwise any data already on disk is checked against the
+	 * piece hashes, which may take a while for a large torrent.
+	 */
+	public PieceManager open(PieceVerifier verifier) throws Exception {
+		File[] dataFiles = getDataFiles();
+		resumeFile = new ResumeFile(output.getParentFile(), torrentFile,
+				dataFiles);
+		// read before the storage is opened, which may touch the files
+		ResumeFile.State state = resumeFile.load();
+		boolean recheck = false;
+		for (int i = 0; state == null && !recheck && i < dataFiles.length; i++) {
+			recheck = dataFiles[i].length() > 0;
+		}
+		PieceManager pieceManager = new PieceManager(torrentFile,
+				openStorage(), verifier);
+		if (state != null) {
+			pieceManager.restore(state);
+			System.out.println("Resuming with "
+					+ state.completedPieces.cardinality() + " of "
+					+ pieceManager.getNumberOfPieces() + " pieces");
+		} else if (recheck) {
+			System.out.println("Checking the data in " + output);
+			long start = System.currentTimeMillis();
+			int complete = pieceManager.recheck(new PieceVerifier.Progress() {
+				public void checked(int pieces, int numberOfPieces) {
+					System.out.println("Checked " + pieces + " of "
+							+ numberOfPieces + " pieces");
+				}
+			});
+			System.out.println(complete + " of "
+					+ pieceManager.getNumberOfPieces()
+					+ " pieces are complete, checked in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+		lastSaved = System.currentTimeMillis();
+		this.pieceManager = pieceManager;
+		return pieceManager;
+	}
+
+	/**
+	 * Saves the progress if it was last saved more than
+	 * {@link #RESUME_INTERVAL} ago.
+	 */
+	public synchronized void saveResumeIfDue() {
+		if (System.currentTimeMillis() - lastSaved > RESUME_INTERVAL) {
+			saveResume(false);
+		}
+	}
+
+	/**
+	 * Writes the progress of the download to its resume file, after making
+	 * sure the data it describes is on disk.
+	 *
+	 * @param close
+	 *            whether to close the storage; the download is over.
+	 */
+	public synchronized void saveResume(boolean close) {
+		if (pieceManager == null) {
+			return;
+		}
+		try {
+			ResumeFile.State state = pieceManager.getResumeState();
+			if (close) {
+				pieceManager.getStorage().close();
+			} else {
+				pieceManager.getStorage().flush();
+			}
+			resumeFile.save(state);
+		} catch (IOException e) {
+			System.err.println("Error: could not save "
+					+ resumeFile.getFile() + ": " + e.getMessage());
+		}
+		lastSaved = System.currentTimeMillis();
+	}
+}
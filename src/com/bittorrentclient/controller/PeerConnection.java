@@ -0,0 +1,871 @@
+package com.bittorrentclient.controller;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.bittorrentclient.model.BlockRequest;
+import com.bittorrentclient.model.PieceManager;
+import com.bittorrentclient.services.PieceCache;
+import com.bittorrentclient.services.RateLimiter;
+import com.bittorrentclient.services.RateMeter;
+import com.bittorrentclient.services.ToolKit;
+import com.bittorrentclient.services.Utilities;
+
+/**
+ * One non-blocking connection to a peer. The connection is a small state
+ * machine (connect, handshake, message exchange) driven by the event loop of
+ * a {@link PeerEngine}; it never blocks and is only ever touched from the
+ * thread of the loop that owns it.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class PeerConnection {
+
+	enum State {
+		CONNECTING, HANDSHAKE, ACTIVE, CLOSED
+	}
+
+	private static final byte[] PROTOCOL = "BitTorrent protocol".getBytes();
+
+	private static final int HANDSHAKE_LENGTH = 49 + PROTOCOL.length;
+
+	// Nothing we accept is larger than a PIECE message or the bitfield of a
+	// torrent with a few million pieces.
+	static final int MAX_MESSAGE_LENGTH = 1 << 20;
+
+	// Send a keep-alive when we have been quiet for this long.
+	private static final int KEEP_ALIVE_INTERVAL = 90000;
+
+	// Under a rate limit no single read or write moves more than this, so
+	// the peers of an event loop take turns at the available bandwidth.
+	private static final int RATE_QUANTUM = 16384;
+
+	// The largest block a peer may ask for, and how many requests from one
+	// peer are queued at most; further requests are dropped.
+	private static final int MAX_REQUEST_LENGTH = 131072;
+	private static final int MAX_PEER_REQUESTS = 256;
+
+	private final PeerEngine engine;
+	private final InetSocketAddress address;
+	private final PieceManager pieceManager;
+	private final byte[] peerId;
+	private final RateLimiter downloadLimiter;
+	private final RateLimiter uploadLimiter;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private State state;
+
+	private ByteBuffer readBuffer;
+	private ByteBuffer writeBuffer;
+
+	private final BitSet peerPieces = new BitSet();
+	private boolean peerChoking = true;
+	private boolean amInterested = false;
+	private final RequestPipeline pipeline = new RequestPipeline();
+
+	// the upload side: whether we choke the peer and what it asked for;
+	// the choker reads the peer's interest from another thread
+	private boolean amChoking = true;
+	private volatile boolean peerInterested = false;
+	private final ArrayDeque<BlockRequest> peerRequests = new ArrayDeque<BlockRequest>();
+
+	// The PIECE message being sent: its header, then its block either from
+	// the piece cache (uploadBody) or straight from storage.
+	private ByteBuffer uploadHeader;
+	private ByteBuffer uploadBody;
+	private long transferOffset;
+	private int transferRemaining;
+	private int uploadLength;
+
+	// blocks received from and sent to the peer, for the choker
+	private final RateMeter downloadMeter = new RateMeter();
+	private final RateMeter uploadMeter = new RateMeter();
+
+	// bytes flush() may still write in this round under a rate limit
+	private int writeBudget;
+
+	// Set while the block of a PIECE message is read from the socket
+	// straight into storage.
+	private ByteBuffer directBlock;
+	private int directIndex;
+	private int directBegin;
+	private int directLength;
+
+	private long connectStarted;
+	private long lastReceived;
+	private long lastSent;
+
+	// SelectionKey operations held back until the rate limiters have tokens
+	private int throttledOps;
+
+	PeerConnection(PeerEngine engine, InetSocketAddress address,
+			PieceManager pieceManager, byte[] peerId,
+			RateLimiter downloadLimiter, RateLimiter uploadLimiter) {
+		this.engine = engine;
+		this.address = address;
+		this.pieceManager = pieceManager;
+		this.peerId = peerId;
+		this.downloadLimiter = downloadLimiter;
+		this.uploadLimiter = uploadLimiter;
+		// Starts small: it grows to hold a whole PIECE message only when
+		// storage cannot take blocks directly from the socket.
+		this.readBuffer = ByteBuffer.allocate(1024);
+		this.writeBuffer = ByteBuffer.allocate(1024);
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	PieceManager getPieceManager() {
+		return pieceManager;
+	}
+
+	/**
+	 * Opens the channel and starts a non-blocking connect.
+	 */
+	void register(Selector selector, int connectTimeout) throws IOException {
+		channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		state = State.CONNECTING;
+		connectStarted = System.currentTimeMillis();
+		key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+		if (channel.connect(address)) {
+			finishConnect();
+		}
+	}
+
+	/**
+	 * Called by the event loop when the selector reports this connection
+	 * ready.
+	 */
+	void handle() {
+		try {
+			if (key.isValid() && key.isConnectable()) {
+				finishConnect();
+			}
+			if (key.isValid() && key.isReadable()) {
+				read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				flush();
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Called by the event loop about once a second to time out dead peers and
+	 * keep live ones from timing us out.
+	 */
+	void tick(long now, int connectTimeout) {
+		if (state == State.CONNECTING || state == State.HANDSHAKE) {
+			if (now - connectStarted > connectTimeout) {
+				close();
+			}
+		} else if (state == State.ACTIVE) {
+			if (now - lastReceived > Utilities.MAX_TIMEOUT) {
+				close();
+				return;
+			}
+			try {
+				if (pipeline.size() == 0) {
+					// pieces held back for a peer on parole may have freed up
+					requestMore();
+				}
+				if (now - lastSent > KEEP_ALIVE_INTERVAL) {
+					send(ByteBuffer.allocate(4));
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+	}
+
+	private void finishConnect() throws IOException {
+		if (!channel.finishConnect()) {
+			return;
+		}
+		System.out.println("Connection succeeded with peer at " + address);
+		state = State.HANDSHAKE;
+		key.interestOps(SelectionKey.OP_READ);
+		lastReceived = System.currentTimeMillis();
+
+		ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+		handshake.put((byte) PROTOCOL.length);
+		handshake.put(PROTOCOL);
+		handshake.put(new byte[8]);
+		handshake.put(pieceManager.getTorrentFile().info_hash_as_binary);
+		handshake.put(peerId);
+		handshake.flip();
+		send(handshake);
+	}
+
+	private void read() throws IOException {
+		if (directBlock != null) {
+			int read = limitedRead(directBlock);
+			if (read < 0) {
+				close();
+				return;
+			}
+			if (read > 0) {
+				lastReceived = System.currentTimeMillis();
+			}
+			if (!directBlock.hasRemaining()) {
+				finishDirectBlock();
+			}
+			return;
+		}
+		int read = limitedRead(readBuffer);
+		if (read < 0) {
+			close();
+			return;
+		}
+		if (read > 0) {
+			lastReceived = System.currentTimeMillis();
+		}
+		readBuffer.flip();
+		int needed = 0;
+		while (state != State.CLOSED && (needed = processMessage()) == 0) {
+			// keep going while there are complete messages in the buffer
+		}
+		if (state == State.CLOSED) {
+			return;
+		}
+		readBuffer.compact();
+		if (needed > readBuffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(needed);
+			readBuffer.flip();
+			larger.put(readBuffer);
+			readBuffer = larger;
+		}
+	}
+
+	/**
+	 * Reads into <code>buffer</code> as much as the download limiters allow.
+	 * When they allow nothing, reading is paused until the event loop resumes
+	 * it.
+	 */
+	private int limitedRead(ByteBuffer buffer) throws IOException {
+		int wanted = buffer.remaining();
+		if (downloadLimiter.isLimited()) {
+			wanted = Math.min(wanted, RATE_QUANTUM);
+		}
+		int allowed = downloadLimiter.request(wanted);
+		if (allowed == 0 && wanted > 0) {
+			throttle(SelectionKey.OP_READ);
+			return 0;
+		}
+		int limit = buffer.limit();
+		buffer.limit(buffer.position() + allowed);
+		int read;
+		try {
+			read = channel.read(buffer);
+		} finally {
+			buffer.limit(limit);
+		}
+		if (read < allowed) {
+			downloadLimiter.giveBack(allowed - Math.max(read, 0));
+		}
+		return read;
+	}
+
+	/**
+	 * Stops selecting <code>operation</code> until the event loop calls
+	 * {@link #resume()}.
+	 */
+	private void throttle(int operation) {
+		if (throttledOps == 0) {
+			engine.throttled(this);
+		}
+		throttledOps |= operation;
+		key.interestOps(key.interestOps() & ~operation);
+	}
+
+	/**
+	 * Called by the event loop shortly after the connection was throttled.
+	 * Reads are selected again and pending writes retried; either is
+	 * throttled again if the limiters still have no tokens.
+	 */
+	void resume() {
+		int ops = throttledOps;
+		throttledOps = 0;
+		if (state == State.CLOSED) {
+			return;
+		}
+		try {
+			if ((ops & SelectionKey.OP_READ) != 0) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+			if ((ops & SelectionKey.OP_WRITE) != 0) {
+				flush();
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Consumes one message from the read buffer.
+	 *
+	 * @return 0 if a message was consumed, otherwise the number of bytes that
+	 *         must be buffered before the next message can be processed.
+	 */
+	private int processMessage() throws IOException {
+		if (state == State.HANDSHAKE) {
+			if (readBuffer.remaining() < HANDSHAKE_LENGTH) {
+				return HANDSHAKE_LENGTH;
+			}
+			checkHandshake();
+			state = State.ACTIVE;
+			sendBitfield();
+			return 0;
+		}
+		if (readBuffer.remaining() < 4) {
+			return 4;
+		}
+		int prefixLength = readBuffer.getInt(readBuffer.position());
+		if (prefixLength < 0 || prefixLength > MAX_MESSAGE_LENGTH) {
+			throw new ProtocolException("pl " + prefixLength);
+		}
+		if (readBuffer.remaining() < 4 + prefixLength) {
+			return startDirectBlock(prefixLength) ? 0 : 4 + prefixLength;
+		}
+		readBuffer.position(readBuffer.position() + 4);
+		if (prefixLength > 0) { // zero is a keep alive message
+			int end = readBuffer.position() + prefixLength;
+			byte messageId = readBuffer.get();
+			handleMessage(messageId, prefixLength);
+			readBuffer.position(end);
+		}
+		return 0;
+	}
+
+	/**
+	 * If the buffer holds the header of a PIECE message whose block has not
+	 * fully arrived yet, and storage can expose the block's region, switches
+	 * to reading the rest of the block from the socket directly into storage.
+	 *
+	 * @return true if the message was taken over.
+	 */
+	private boolean startDirectBlock(int prefixLength) throws IOException {
+		int start = readBuffer.position();
+		if (prefixLength < 10 || readBuffer.remaining() < 13
+				|| readBuffer.get(start + 4) != TorrentFileHandlerTester.PIECE) {
+			return false;
+		}
+		int index = readBuffer.getInt(start + 5);
+		int begin = readBuffer.getInt(start + 9);
+		int length = prefixLength - 9;
+		if (!pieceManager.isValidBlock(index, begin, length)) {
+			throw new ProtocolException("piece " + index + " begin " + begin);
+		}
+		ByteBuffer target = pieceManager.getStorage()
+				.map(pieceManager.getOffset(index, begin), length);
+		if (target == null || !pieceManager.claimBlock(index, begin, length,
+						address)) {
+			return false;
+		}
+		readBuffer.position(start + 13);
+		target.put(readBuffer);
+		directBlock = target;
+		directIndex = index;
+		directBegin = begin;
+		directLength = length;
+		return true;
+	}
+
+	private void finishDirectBlock() throws IOException {
+		ByteBuffer block = directBlock;
+		directBlock = null;
+		block.position(block.limit() - directLength);
+		pieceManager.blockStored(directIndex, directBegin, block);
+		blockArrived(directIndex, directBegin, directLength);
+	}
+
+	private void checkHandshake() throws IOException {
+		byte[] handshake = new byte[HANDSHAKE_LENGTH];
+		readBuffer.get(handshake);
+		if (handshake[0] != PROTOCOL.length || !Arrays.equals(
+				Arrays.copyOfRange(handshake, 1, 1 + PROTOCOL.length),
+				PROTOCOL)) {
+			throw new ProtocolException("bad protocol identifier");
+		}
+		int infoHashOffset = 1 + PROTOCOL.length + 8;
+		if (!Arrays.equals(
+				Arrays.copyOfRange(handshake, infoHashOffset,
+						infoHashOffset + 20),
+				pieceManager.getTorrentFile().info_hash_as_binary)) {
+			throw new ProtocolException("info hash mismatch");
+		}
+	}
+
+	private void handleMessage(byte messageId, int prefixLength)
+			throws IOException {
+		switch (messageId) {
+		case TorrentFileHandlerTester.CHOKE:
+			peerChoking = true;
+			releaseRequests();
+			break;
+		case TorrentFileHandlerTester.UNCHOKE:
+			peerChoking = false;
+			requestMore();
+			break;
+		case TorrentFileHandlerTester.INTERESTED:
+			peerInterested = true;
+			// a free slot need not wait for the next round
+			engine.rechoke(pieceManager);
+			break;
+		case TorrentFileHandlerTester.UNINTERESTED:
+			peerInterested = false;
+			if (!amChoking) {
+				engine.rechoke(pieceManager);
+			}
+			break;
+		case TorrentFileHandlerTester.REQUEST:
+			if (prefixLength != 13) {
+				throw new ProtocolException();
+			}
+			peerRequested(new BlockRequest(readBuffer.getInt(),
+					readBuffer.getInt(), readBuffer.getInt()));
+			break;
+		case TorrentFileHandlerTester.CANCEL:
+			if (prefixLength != 13) {
+				throw new ProtocolException();
+			}
+			peerRequests.remove(new BlockRequest(readBuffer.getInt(),
+					readBuffer.getInt(), readBuffer.getInt()));
+			break;
+		case TorrentFileHandlerTester.HAVE:
+			if (prefixLength != 5) {
+				throw new ProtocolException();
+			}
+			int haveIndex = readBuffer.getInt();
+			if (!pieceManager.isValidIndex(haveIndex)) {
+				throw new ProtocolException("have " + haveIndex);
+			}
+			if (!peerPieces.get(haveIndex)) {
+				peerPieces.set(haveIndex);
+				pieceManager.peerHas(haveIndex);
+			}
+			updateInterest();
+			break;
+		case TorrentFileHandlerTester.BITFIELD:
+			byte[] bitfield = new byte[prefixLength - 1];
+			readBuffer.get(bitfield);
+			if (!pieceManager.isValidBitfield(bitfield)) {
+				throw new ProtocolException("bitfield of " + bitfield.length
+						+ " bytes");
+			}
+			pieceManager.peerGone(peerPieces);
+			ToolKit.bytesToBitSet(bitfield, peerPieces);
+			pieceManager.peerHas(peerPieces);
+			updateInterest();
+			break;
+		case TorrentFileHandlerTester.PIECE:
+			if (prefixLength < 10) {
+				throw new ProtocolException();
+			}
+			int index = readBuffer.getInt();
+			int begin = readBuffer.getInt();
+			if (!pieceManager.isValidBlock(index, begin, prefixLength - 9)) {
+				throw new ProtocolException("piece " + index + " begin "
+						+ begin);
+			}
+			// hand the block to storage straight from the read buffer
+			ByteBuffer block = readBuffer.duplicate();
+			block.limit(block.position() + prefixLength - 9);
+			pieceManager.blockReceived(index, begin, block, address);
+			blockArrived(index, begin, prefixLength - 9);
+			break;
+		default:
+			// discard it
+			break;
+		}
+	}
+
+	private void blockArrived(int index, int begin, int length)
+			throws IOException {
+		downloadMeter.add(length);
+		BlockRequest request = pipeline.received(index, begin, length,
+				System.currentTimeMillis());
+		if (pieceManager.isBanned(address)) {
+			System.out.println("Dropping peer " + address
+					+ " for sending corrupt pieces");
+			close();
+			return;
+		}
+		if (request != null && pieceManager.isEndgame()) {
+			engine.cancelDuplicates(pieceManager, request, this);
+		}
+		requestMore();
+	}
+
+	/**
+	 * Queues a block the peer asked for, unless we choke it, do not have the
+	 * piece or the request is malformed. The block is sent once everything
+	 * queued before it has been written.
+	 */
+	private void peerRequested(BlockRequest request) throws IOException {
+		if (amChoking || request.index < 0
+				|| request.index >= pieceManager.getNumberOfPieces()
+				|| !pieceManager.hasPiece(request.index)
+				|| request.begin < 0 || request.length <= 0
+				|| request.length > MAX_REQUEST_LENGTH
+				|| request.begin > pieceManager.getPieceLength(request.index)
+						- request.length
+				|| peerRequests.size() >= MAX_PEER_REQUESTS) {
+			return;
+		}
+		peerRequests.add(request);
+		flush();
+	}
+
+	/**
+	 * Tells the peer which pieces we have, if any.
+	 */
+	private void sendBitfield() throws IOException {
+		BitSet completed = pieceManager.getCompletedPieces();
+		if (completed.isEmpty()) {
+			return;
+		}
+		byte[] bitfield = new byte[(pieceManager.getNumberOfPieces() + 7) / 8];
+		ToolKit.bitSetToBytes(completed, bitfield);
+		ByteBuffer message = ByteBuffer.allocate(5 + bitfield.length);
+		message.putInt(1 + bitfield.length)
+				.put(TorrentFileHandlerTester.BITFIELD).put(bitfield);
+		message.flip();
+		send(message);
+	}
+
+	/**
+	 * Sends HAVE for a piece we just completed. Called on the event loop
+	 * thread.
+	 */
+	void have(int index) {
+		if (state != State.ACTIVE) {
+			// the BITFIELD sent after the handshake will include it
+			return;
+		}
+		ByteBuffer message = ByteBuffer.allocate(9);
+		message.putInt(5).put(TorrentFileHandlerTester.HAVE).putInt(index);
+		message.flip();
+		try {
+			send(message);
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Chokes or unchokes the peer, as decided by the {@link Choker}. Choking
+	 * drops whatever it asked for that has not been sent yet. Called on the
+	 * event loop thread.
+	 */
+	void setChoked(boolean choked) {
+		if (state != State.ACTIVE || choked == amChoking) {
+			return;
+		}
+		amChoking = choked;
+		try {
+			if (choked) {
+				peerRequests.clear();
+				sendMessage(TorrentFileHandlerTester.CHOKE);
+			} else {
+				sendMessage(TorrentFileHandlerTester.UNCHOKE);
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	boolean isPeerInterested() {
+		return peerInterested;
+	}
+
+	RateMeter getDownloadMeter() {
+		return downloadMeter;
+	}
+
+	RateMeter getUploadMeter() {
+		return uploadMeter;
+	}
+
+	private void updateInterest() throws IOException {
+		if (!amInterested && pieceManager.isInteresting(peerPieces)) {
+			amInterested = true;
+			sendMessage(TorrentFileHandlerTester.INTERESTED);
+		}
+	}
+
+	/**
+	 * Tops up the request pipeline, sending all new requests in one write.
+	 */
+	private void requestMore() throws IOException {
+		if (peerChoking || !pipeline.wantsMore()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		ByteBuffer requests = ByteBuffer.allocate(
+				17 * (pipeline.getDepth() - pipeline.size()));
+		while (pipeline.wantsMore()) {
+			BlockRequest request = pieceManager.nextRequest(peerPieces,
+					pipeline.getRequests(), address);
+			if (request == null) {
+				break;
+			}
+			pipeline.sent(request, now);
+			requests.putInt(13).put(TorrentFileHandlerTester.REQUEST)
+					.putInt(request.index).putInt(request.begin)
+					.putInt(request.length);
+		}
+		if (requests.position() > 0) {
+			requests.flip();
+			send(requests);
+		} else if (pipeline.size() == 0 && amInterested
+				&& !pieceManager.isInteresting(peerPieces)) {
+			amInterested = false;
+			sendMessage(TorrentFileHandlerTester.UNINTERESTED);
+		}
+	}
+
+	/**
+	 * Sends CANCEL for <code>request</code> if it is still in flight on this
+	 * connection. Used in endgame mode once another peer delivered the block.
+	 */
+	void cancel(BlockRequest request) {
+		if (state != State.ACTIVE || !pipeline.remove(request)) {
+			return;
+		}
+		ByteBuffer cancel = ByteBuffer.allocate(17);
+		cancel.putInt(13).put(TorrentFileHandlerTester.CANCEL)
+				.putInt(request.index).putInt(request.begin)
+				.putInt(request.length);
+		cancel.flip();
+		try {
+			send(cancel);
+			requestMore();
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	private void releaseRequests() {
+		for (BlockRequest request : pipeline.clear()) {
+			pieceManager.releaseRequest(request);
+		}
+	}
+
+	private void sendMessage(byte messageId) throws IOException {
+		ByteBuffer message = ByteBuffer.allocate(5);
+		message.putInt(1).put(messageId);
+		message.flip();
+		send(message);
+	}
+
+	/**
+	 * Queues <code>message</code> and writes as much as the socket accepts
+	 * without blocking. Whatever is left is written when the selector reports
+	 * the channel writable.
+	 */
+	private void send(ByteBuffer message) throws IOException {
+		if (writeBuffer.remaining() < message.remaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(
+					writeBuffer.position() + message.remaining() + 1024);
+			writeBuffer.flip();
+			larger.put(writeBuffer);
+			writeBuffer = larger;
+		}
+		writeBuffer.put(message);
+		lastSent = System.currentTimeMillis();
+		flush();
+	}
+
+	/**
+	 * Writes whatever is waiting: the rest of the PIECE message being sent,
+	 * then the queued messages, then the blocks the peer asked for, until the
+	 * socket or the upload limiters will not take more. A PIECE message is
+	 * only started when no other message is partly written, and nothing else
+	 * is written until it is done, so messages never interleave.
+	 */
+	private void flush() throws IOException {
+		if ((throttledOps & SelectionKey.OP_WRITE) != 0) {
+			// the event loop retries once there are tokens
+			return;
+		}
+		writeBudget = uploadLimiter.isLimited() ? RATE_QUANTUM
+				: Integer.MAX_VALUE;
+		boolean done = true;
+		while (done) {
+			if (uploadHeader != null) {
+				done = writeUpload();
+			} else if (writeBuffer.position() > 0) {
+				writeBuffer.flip();
+				done = limitedWrite(writeBuffer);
+				writeBuffer.compact();
+			} else if (!startUpload()) {
+				break;
+			}
+		}
+		if ((throttledOps & SelectionKey.OP_WRITE) != 0) {
+			// the limiters are out of tokens; the event loop resumes us
+		} else if (!done) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		} else {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Writes as much of <code>buffer</code> as the socket, the upload
+	 * limiters and this round's budget allow.
+	 *
+	 * @return true if all of it was written.
+	 */
+	private boolean limitedWrite(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			int wanted = Math.min(buffer.remaining(), writeBudget);
+			if (wanted == 0) {
+				return false;
+			}
+			int allowed = uploadLimiter.request(wanted);
+			if (allowed == 0) {
+				throttle(SelectionKey.OP_WRITE);
+				return false;
+			}
+			int limit = buffer.limit();
+			buffer.limit(buffer.position() + allowed);
+			int written;
+			try {
+				written = channel.write(buffer);
+			} finally {
+				buffer.limit(limit);
+			}
+			writeBudget -= written;
+			if (written < allowed) {
+				uploadLimiter.giveBack(allowed - written);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the next block the peer asked for and prepares its PIECE
+	 * message. The block comes from the piece cache if the piece is worth
+	 * caching, otherwise it is transferred from storage by the kernel.
+	 *
+	 * @return false if there is nothing to send.
+	 */
+	private boolean startUpload() throws IOException {
+		BlockRequest request = peerRequests.poll();
+		if (request == null) {
+			return false;
+		}
+		PieceCache cache = engine.getPieceCache();
+		ByteBuffer piece = cache == null ? null : cache.get(
+				pieceManager.getStorage(), request.index,
+				pieceManager.getOffset(request.index, 0),
+				pieceManager.getPieceLength(request.index));
+		uploadHeader = ByteBuffer.allocate(13);
+		uploadHeader.putInt(9 + request.length)
+				.put(TorrentFileHandlerTester.PIECE).putInt(request.index)
+				.putInt(request.begin);
+		uploadHeader.flip();
+		if (piece != null) {
+			piece.limit(request.begin + request.length);
+			piece.position(request.begin);
+			uploadBody = piece;
+		} else {
+			transferOffset = pieceManager.getOffset(request.index,
+					request.begin);
+			transferRemaining = request.length;
+		}
+		uploadLength = request.length;
+		return true;
+	}
+
+	/**
+	 * Continues sending the PIECE message started by startUpload().
+	 *
+	 * @return true once all of it has been written.
+	 */
+	private boolean writeUpload() throws IOException {
+		if (!limitedWrite(uploadHeader)) {
+			return false;
+		}
+		if (uploadBody != null) {
+			if (!limitedWrite(uploadBody)) {
+				return false;
+			}
+		} else {
+			while (transferRemaining > 0) {
+				int wanted = Math.min(transferRemaining, writeBudget);
+				if (wanted == 0) {
+					return false;
+				}
+				int allowed = uploadLimiter.request(wanted);
+				if (allowed == 0) {
+					throttle(SelectionKey.OP_WRITE);
+					return false;
+				}
+				int written = (int) pieceManager.getStorage()
+						.transferTo(transferOffset, allowed, channel);
+				transferOffset += written;
+				transferRemaining -= written;
+				writeBudget -= written;
+				if (written < allowed) {
+					uploadLimiter.giveBack(allowed - written);
+					return false;
+				}
+			}
+		}
+		pieceManager.blockSent(uploadLength);
+		uploadMeter.add(uploadLength);
+		uploadHeader = null;
+		uploadBody = null;
+		lastSent = System.currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * Closes the channel and gives back any blocks we were still waiting for.
+	 */
+	void close() {
+		if (state == State.CLOSED) {
+			return;
+		}
+		state = State.CLOSED;
+		if (directBlock != null) {
+			directBlock = null;
+			pieceManager.blockFailed(directIndex, directBegin);
+		}
+		releaseRequests();
+		pieceManager.peerGone(peerPieces, address);
+		if (!amChoking) {
+			// its slot is free
+			engine.rechoke(pieceManager);
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// nothing left to do with this peer
+		}
+		engine.connectionClosed(this);
+	}
+}
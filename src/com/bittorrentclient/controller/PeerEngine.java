@@ -0,0 +1,507 @@
+package com.bittorrentclient.controller;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bittorrentclient.model.BlockRequest;
+import com.bittorrentclient.model.PieceManager;
+import com.bittorrentclient.services.PieceCache;
+import com.bittorrentclient.services.RateLimiter;
+
+/**
+ * Drives many non-blocking peer connections from a small number of event loop
+ * threads. Each loop owns a {@link Selector} and every connection registered
+ * with it, so a slow peer only delays its own connection instead of the whole
+ * download.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class PeerEngine {
+
+	public static final int DEFAULT_EVENT_LOOPS = Math.min(4,
+			Runtime.getRuntime().availableProcessors());
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 500;
+
+	private static final int SELECT_TIMEOUT = 1000;
+
+	// how soon connections paused by a rate limiter try again
+	private static final int THROTTLE_INTERVAL = 10;
+
+	private final EventLoop[] loops;
+
+	private final int maxConnections;
+
+	private final int connectTimeout;
+
+	private final AtomicInteger connectionCount = new AtomicInteger();
+
+	/*
+	 * The connections of one download. An engine may be shared by several
+	 * torrents, and each one chokes and unchokes its own peers.
+	 */
+	private static class Swarm {
+		// open or pending connections
+		int count;
+		// the peers they are to, so no peer is connected to twice
+		final Set<InetSocketAddress> addresses = new HashSet<InetSocketAddress>();
+		final Set<PeerConnection> connections = Collections
+				.newSetFromMap(new ConcurrentHashMap<PeerConnection, Boolean>());
+		// only used by the first event loop, which runs the choke rounds
+		final Choker choker;
+
+		Swarm(int uploadSlots) {
+			choker = new Choker(uploadSlots);
+		}
+	}
+
+	private final Map<PieceManager, Swarm> swarms = new HashMap<PieceManager, Swarm>();
+
+	// downloads with a peer that became interested, or an unchoked one
+	// that left, since the last choke round
+	private final Set<PieceManager> rechoke = Collections
+			.newSetFromMap(new ConcurrentHashMap<PieceManager, Boolean>());
+
+	private volatile int uploadSlots = Choker.DEFAULT_UPLOAD_SLOTS;
+
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	// answers peers' requests; null to send every block from storage
+	private final PieceCache pieceCache;
+
+	// tells the connections of a download about each piece it completes
+	private final PieceManager.Listener haveListener = new PieceManager.Listener() {
+		public void pieceCompleted(PieceManager pieceManager, int index) {
+			broadcastHave(pieceManager, index);
+		}
+	};
+
+	private volatile boolean running;
+
+	public PeerEngine(int numberOfLoops, int maxConnections,
+			int connectTimeout) throws IOException {
+		this(numberOfLoops, maxConnections, connectTimeout, null);
+	}
+
+	/**
+	 * @param pieceCache
+	 *            the cache blocks requested by peers are sent from; may be
+	 *            null.
+	 */
+	public PeerEngine(int numberOfLoops, int maxConnections,
+			int connectTimeout, PieceCache pieceCache) throws IOException {
+		super();
+		this.pieceCache = pieceCache;
+		this.maxConnections = maxConnections;
+		this.connectTimeout = connectTimeout;
+		this.loops = new EventLoop[numberOfLoops];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(i);
+		}
+	}
+
+	public void start() {
+		running = true;
+		for (EventLoop loop : loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Stops every event loop and closes all connections.
+	 */
+	public void shutdown() {
+		running = false;
+		for (EventLoop loop : loops) {
+			loop.selector.wakeup();
+		}
+		for (EventLoop loop : loops) {
+			try {
+				loop.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Starts connecting to the peer at <code>address</code> for the download
+	 * tracked by <code>pieceManager</code>. Returns immediately; the
+	 * connection and handshake happen on an event loop thread.
+	 *
+	 * @return false if the connection limit has been reached, or the peer is
+	 *         banned or already connected for this download.
+	 */
+	public boolean connect(InetSocketAddress address,
+			PieceManager pieceManager, byte[] peerId) {
+		return connect(address, pieceManager, peerId, new RateLimiter(
+				RateLimiter.UNLIMITED, null), new RateLimiter(
+				RateLimiter.UNLIMITED, null));
+	}
+
+	/**
+	 * Like {@link #connect(InetSocketAddress, PieceManager, byte[])}, with the
+	 * connection's transfers held to <code>downloadLimiter</code> and
+	 * <code>uploadLimiter</code>. These should be the peer's own limiters,
+	 * chained to those of its torrent and the session.
+	 */
+	public boolean connect(final InetSocketAddress address,
+			final PieceManager pieceManager, final byte[] peerId,
+			final RateLimiter downloadLimiter, final RateLimiter uploadLimiter) {
+		if (pieceManager.isBanned(address)) {
+			return false;
+		}
+		if (connectionCount.incrementAndGet() > maxConnections) {
+			connectionCount.decrementAndGet();
+			return false;
+		}
+		final Swarm swarm;
+		synchronized (swarms) {
+			Swarm existing = swarms.get(pieceManager);
+			if (existing != null && !existing.addresses.add(address)) {
+				connectionCount.decrementAndGet();
+				return false;
+			}
+			if (existing == null) {
+				existing = new Swarm(uploadSlots);
+				existing.addresses.add(address);
+				swarms.put(pieceManager, existing);
+				pieceManager.addListener(haveListener);
+			}
+			existing.count++;
+			swarm = existing;
+		}
+		final EventLoop loop = loops[Math
+				.abs(nextLoop.getAndIncrement() % loops.length)];
+		loop.execute(new Runnable() {
+			public void run() {
+				PeerConnection connection = new PeerConnection(
+						PeerEngine.this, address, pieceManager, peerId,
+						downloadLimiter, uploadLimiter);
+				loop.connections.add(connection);
+				swarm.connections.add(connection);
+				try {
+					connection.register(loop.selector, connectTimeout);
+				} catch (IOException e) {
+					connection.close();
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Cancels <code>request</code> on every other connection of the same
+	 * download. Called in endgame mode when a block arrives, since the same
+	 * block may have been requested from several peers.
+	 */
+	void cancelDuplicates(final PieceManager pieceManager,
+			final BlockRequest request, final PeerConnection source) {
+		for (final EventLoop loop : loops) {
+			loop.execute(new Runnable() {
+				public void run() {
+					for (PeerConnection connection : new ArrayList<PeerConnection>(
+							loop.connections)) {
+						if (connection != source && connection
+								.getPieceManager() == pieceManager) {
+							connection.cancel(request);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sends HAVE for piece <code>index</code> on every connection of the
+	 * download tracked by <code>pieceManager</code>.
+	 */
+	private void broadcastHave(final PieceManager pieceManager,
+			final int index) {
+		for (final EventLoop loop : loops) {
+			loop.execute(new Runnable() {
+				public void run() {
+					for (PeerConnection connection : new ArrayList<PeerConnection>(
+							loop.connections)) {
+						if (connection.getPieceManager() == pieceManager) {
+							connection.have(index);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Closes every connection of the download tracked by
+	 * <code>pieceManager</code>, leaving the other downloads alone. Returns
+	 * immediately; the connections are closed on their event loop threads.
+	 */
+	public void disconnect(final PieceManager pieceManager) {
+		for (final EventLoop loop : loops) {
+			loop.execute(new Runnable() {
+				public void run() {
+					for (PeerConnection connection : new ArrayList<PeerConnection>(
+							loop.connections)) {
+						if (connection.getPieceManager() == pieceManager) {
+							connection.close();
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sets how many peers of each download are unchoked, besides the
+	 * optimistic unchoke. Applies to downloads that connect from now on.
+	 */
+	public void setUploadSlots(int uploadSlots) {
+		this.uploadSlots = uploadSlots;
+	}
+
+	/**
+	 * Asks for the peers of the download tracked by <code>pieceManager</code>
+	 * to be choked or unchoked again before the next regular round.
+	 */
+	void rechoke(PieceManager pieceManager) {
+		rechoke.add(pieceManager);
+	}
+
+	/**
+	 * Runs on the first event loop about once a second. Every download gets
+	 * a regular choke round every Choker.ROUND_INTERVAL; in between, only
+	 * those that asked for it are rechoked.
+	 */
+	private void runChoker(long now, boolean regular) {
+		List<PieceManager> due = new ArrayList<PieceManager>();
+		if (regular) {
+			rechoke.clear();
+			synchronized (swarms) {
+				due.addAll(swarms.keySet());
+			}
+		} else {
+			for (Iterator<PieceManager> iterator = rechoke.iterator(); iterator
+					.hasNext();) {
+				due.add(iterator.next());
+				iterator.remove();
+			}
+		}
+		for (PieceManager pieceManager : due) {
+			Swarm swarm;
+			synchronized (swarms) {
+				swarm = swarms.get(pieceManager);
+			}
+			if (swarm != null) {
+				applyChoking(pieceManager, swarm.choker.choose(
+						new ArrayList<PeerConnection>(swarm.connections),
+						pieceManager.isComplete(), regular, now));
+			}
+		}
+	}
+
+	/**
+	 * Unchokes the connections in <code>unchoked</code> and chokes every
+	 * other connection of the same download, each on its own event loop.
+	 */
+	private void applyChoking(final PieceManager pieceManager,
+			final Set<PeerConnection> unchoked) {
+		for (final EventLoop loop : loops) {
+			loop.execute(new Runnable() {
+				public void run() {
+					for (PeerConnection connection : new ArrayList<PeerConnection>(
+							loop.connections)) {
+						if (connection.getPieceManager() == pieceManager) {
+							connection.setChoked(!unchoked
+									.contains(connection));
+						}
+					}
+				}
+			});
+		}
+	}
+
+	PieceCache getPieceCache() {
+		return pieceCache;
+	}
+
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	/**
+	 * Returns the number of open or pending connections of the download
+	 * tracked by <code>pieceManager</code>.
+	 */
+	public int getConnectionCount(PieceManager pieceManager) {
+		synchronized (swarms) {
+			Swarm swarm = swarms.get(pieceManager);
+			return swarm == null ? 0 : swarm.count;
+		}
+	}
+
+	/**
+	 * Called on its event loop thread by a connection that a rate limiter
+	 * paused, so the loop resumes it shortly.
+	 */
+	void throttled(PeerConnection connection) {
+		for (EventLoop loop : loops) {
+			if (Thread.currentThread() == loop.thread) {
+				loop.throttled.add(connection);
+			}
+		}
+	}
+
+	void connectionClosed(PeerConnection connection) {
+		for (EventLoop loop : loops) {
+			if (Thread.currentThread() == loop.thread) {
+				loop.connections.remove(connection);
+			}
+		}
+		connectionCount.decrementAndGet();
+		synchronized (swarms) {
+			Swarm swarm = swarms.get(connection.getPieceManager());
+			if (swarm != null) {
+				swarm.connections.remove(connection);
+				swarm.addresses.remove(connection.getAddress());
+				if (--swarm.count == 0) {
+					// forgotten with its last connection, so a removed
+					// download is not kept alive here
+					swarms.remove(connection.getPieceManager());
+					connection.getPieceManager().removeListener(haveListener);
+				}
+			}
+		}
+	}
+
+	private class EventLoop implements Runnable {
+		final Selector selector;
+		final Thread thread;
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		final Set<PeerConnection> connections = new HashSet<PeerConnection>();
+		List<PeerConnection> throttled = new ArrayList<PeerConnection>();
+
+		EventLoop(int number) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "peer-engine-" + number);
+			thread.setDaemon(true);
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/*
+		 * Drops a connection that hit a bug or a message it could not cope
+		 * with, so the loop carries on with the others.
+		 */
+		void failed(PeerConnection connection, RuntimeException e) {
+			System.err.println("Error: dropping peer "
+					+ connection.getAddress() + ": " + e);
+			e.printStackTrace();
+			try {
+				connection.close();
+			} catch (RuntimeException closing) {
+				// already as closed as it can get
+			}
+		}
+
+		public void run() {
+			long lastTick = System.currentTimeMillis();
+			long lastResumed = lastTick;
+			long lastChokeRound = 0;
+			while (running) {
+				try {
+					selector.select(throttled.isEmpty() ? SELECT_TIMEOUT
+							: THROTTLE_INTERVAL);
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+				Iterator<SelectionKey> selected = selector.selectedKeys()
+						.iterator();
+				while (selected.hasNext()) {
+					SelectionKey key = selected.next();
+					selected.remove();
+					PeerConnection connection = (PeerConnection) key
+							.attachment();
+					try {
+						connection.handle();
+					} catch (RuntimeException e) {
+						failed(connection, e);
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (!throttled.isEmpty()
+						&& now - lastResumed >= THROTTLE_INTERVAL) {
+					// in the order they were paused, so every peer gets its
+					// turn at the tokens
+					lastResumed = now;
+					List<PeerConnection> paused = throttled;
+					throttled = new ArrayList<PeerConnection>();
+					for (PeerConnection connection : paused) {
+						try {
+							connection.resume();
+						} catch (RuntimeException e) {
+							failed(connection, e);
+						}
+					}
+				}
+				if (now - lastTick >= SELECT_TIMEOUT) {
+					lastTick = now;
+					if (this == loops[0]) {
+						boolean regular = now - lastChokeRound >= Choker.ROUND_INTERVAL;
+						if (regular) {
+							lastChokeRound = now;
+						}
+						try {
+							runChoker(now, regular);
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+						}
+					}
+					for (PeerConnection connection : new ArrayList<PeerConnection>(
+							connections)) {
+						try {
+							connection.tick(now, connectTimeout);
+						} catch (RuntimeException e) {
+							failed(connection, e);
+						}
+					}
+				}
+			}
+			for (PeerConnection connection : new ArrayList<PeerConnection>(
+					connections)) {
+				connection.close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
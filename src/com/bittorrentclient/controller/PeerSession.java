@@ -0,0 +1,355 @@
+package com.bittorrentclient.controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.bittorrentclient.model.BlockRequest;
+import com.bittorrentclient.model.PieceManager;
+import com.bittorrentclient.services.RateLimiter;
+import com.bittorrentclient.services.ToolKit;
+import com.bittorrentclient.services.Utilities;
+
+/**
+ * A blocking download session with a single peer. It follows the same steps
+ * as the sequential client (openSocket, checkPeer, goUntilUnChoked,
+ * requestPieces) but keeps its own socket and peer state and shares only the
+ * {@link PieceManager}, so many sessions can run at the same time, one per
+ * thread.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class PeerSession implements Runnable {
+
+	private static final byte[] PROTOCOL = "BitTorrent protocol".getBytes();
+
+	// How long to wait before asking again when every block this peer has
+	// is already being downloaded from someone else.
+	private static final int RETRY_INTERVAL = 1000;
+
+	private final String ipAddress;
+	private final int port;
+	private final InetSocketAddress address;
+	private final PieceManager pieceManager;
+	private final byte[] peerId;
+	private final int socketTimeout;
+	private final RateLimiter downloadLimiter;
+
+	private Socket peerSocket;
+	private DataInputStream is;
+	private DataOutputStream peerStream;
+
+	private final BitSet peerPieces = new BitSet();
+	private boolean peerChoking = true;
+	private boolean amInterested = false;
+	private final RequestPipeline pipeline = new RequestPipeline();
+
+	// reused for every PIECE message read from this peer
+	private final byte[] blockBuffer = new byte[PieceManager.BLOCK_SIZE];
+
+	public PeerSession(String ipAddress, int port, PieceManager pieceManager,
+			byte[] peerId, int socketTimeout) {
+		this(ipAddress, port, pieceManager, peerId, socketTimeout,
+				new RateLimiter(RateLimiter.UNLIMITED, null));
+	}
+
+	/**
+	 * @param downloadLimiter
+	 *            the blocks received are held to this limiter; the session
+	 *            sleeps after a block until it has been granted.
+	 */
+	public PeerSession(String ipAddress, int port, PieceManager pieceManager,
+			byte[] peerId, int socketTimeout, RateLimiter downloadLimiter) {
+		super();
+		this.ipAddress = ipAddress;
+		this.port = port;
+		this.address = new InetSocketAddress(ipAddress, port);
+		this.pieceManager = pieceManager;
+		this.peerId = peerId;
+		this.socketTimeout = socketTimeout;
+		this.downloadLimiter = downloadLimiter;
+	}
+
+	/**
+	 * Returns an executor that runs every submitted session on its own
+	 * virtual thread. Virtual threads need Java 21; on older runtimes the
+	 * sessions run on a cached pool of platform threads instead.
+	 */
+	public static ExecutorService newSessionExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	public void run() {
+		if (pieceManager.isBanned(address)) {
+			return;
+		}
+		try {
+			if (!openSocket()) {
+				System.out.println("Connection failed with peer at ip address: "
+						+ ipAddress + " and port: " + port + "\n");
+				return;
+			}
+			System.out.println("Connection succeeded with peer at ip address: "
+					+ ipAddress + " and port: " + port + "\n");
+			goUntilUnChoked();
+			requestPieces();
+		} catch (IOException e) {
+			// the peer went away, whatever it still owed us is released below
+		} catch (RuntimeException e) {
+			System.err.println("Error: dropping peer " + ipAddress + ":" + port
+					+ ": " + e);
+			e.printStackTrace();
+		} finally {
+			close();
+		}
+	}
+
+	private boolean openSocket() throws IOException {
+		peerSocket = new Socket();
+		try {
+			peerSocket.connect(address, socketTimeout);
+		} catch (IOException e) {
+			return false;
+		}
+		peerSocket.setSoTimeout(Utilities.MAX_TIMEOUT);
+		is = new DataInputStream(
+				new BufferedInputStream(peerSocket.getInputStream()));
+		peerStream = new DataOutputStream(
+				new BufferedOutputStream(peerSocket.getOutputStream()));
+
+		peerStream.writeByte(PROTOCOL.length);
+		peerStream.write(PROTOCOL);
+		peerStream.write(new byte[8]);
+		peerStream.write(pieceManager.getTorrentFile().info_hash_as_binary);
+		peerStream.write(peerId);
+		peerStream.flush();
+
+		return checkPeer();
+	}
+
+	private boolean checkPeer() throws IOException {
+		int protocolIdentifierLength = is.readByte();
+		if (protocolIdentifierLength != PROTOCOL.length) {
+			return false;
+		}
+		byte[] protocolString = new byte[protocolIdentifierLength];
+		is.readFully(protocolString);
+		if (!Arrays.equals(protocolString, PROTOCOL)) {
+			return false;
+		}
+		is.skipBytes(8);
+		byte[] infoHash = new byte[20];
+		is.readFully(infoHash);
+		if (!Arrays.equals(infoHash,
+				pieceManager.getTorrentFile().info_hash_as_binary)) {
+			return false;
+		}
+		is.skipBytes(20);
+		return true;
+	}
+
+	/**
+	 * Reads messages until the peer unchokes us, sending INTERESTED once we
+	 * know the peer has something we need.
+	 */
+	private void goUntilUnChoked() throws IOException {
+		while (peerChoking && !pieceManager.isComplete()) {
+			readMessage();
+		}
+	}
+
+	/**
+	 * Keeps the request pipeline full until the download is complete or the
+	 * peer has nothing left that we need.
+	 */
+	private void requestPieces() throws IOException {
+		while (!pieceManager.isComplete()) {
+			if (peerChoking) {
+				goUntilUnChoked();
+				continue;
+			}
+			long now = System.currentTimeMillis();
+			boolean sent = false;
+			while (pipeline.wantsMore()) {
+				BlockRequest request = pieceManager.nextRequest(peerPieces,
+						pipeline.getRequests(), address);
+				if (request == null) {
+					break;
+				}
+				pipeline.sent(request, now);
+				peerStream.writeInt(13);
+				peerStream.writeByte(TorrentFileHandlerTester.REQUEST);
+				peerStream.writeInt(request.index);
+				peerStream.writeInt(request.begin);
+				peerStream.writeInt(request.length);
+				sent = true;
+			}
+			if (pieceManager.isEndgame()) {
+				sent |= cancelReceived();
+			}
+			if (sent) {
+				peerStream.flush();
+			}
+			if (pipeline.size() == 0) {
+				if (!pieceManager.isInteresting(peerPieces)) {
+					return;
+				}
+				try {
+					pieceManager.awaitCompletion(RETRY_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			readMessage();
+		}
+	}
+
+	/**
+	 * Sends CANCEL for every block in the pipeline that another peer has
+	 * delivered in the meantime.
+	 *
+	 * @return true if anything was written.
+	 */
+	private boolean cancelReceived() throws IOException {
+		boolean sent = false;
+		for (BlockRequest request : new ArrayList<BlockRequest>(
+				pipeline.getRequests())) {
+			if (pieceManager.isReceived(request)) {
+				pipeline.remove(request);
+				peerStream.writeInt(13);
+				peerStream.writeByte(TorrentFileHandlerTester.CANCEL);
+				peerStream.writeInt(request.index);
+				peerStream.writeInt(request.begin);
+				peerStream.writeInt(request.length);
+				sent = true;
+			}
+		}
+		return sent;
+	}
+
+	private void readMessage() throws IOException {
+		int prefixLength = is.readInt();
+		if (prefixLength < 0
+				|| prefixLength > PeerConnection.MAX_MESSAGE_LENGTH) {
+			throw new ProtocolException("pl " + prefixLength);
+		}
+		if (prefixLength == 0) { // keep alive message
+			return;
+		}
+		byte messageId = is.readByte();
+		switch (messageId) {
+		case TorrentFileHandlerTester.CHOKE:
+			peerChoking = true;
+			releaseRequests();
+			break;
+		case TorrentFileHandlerTester.UNCHOKE:
+			peerChoking = false;
+			break;
+		case TorrentFileHandlerTester.HAVE:
+			if (prefixLength != 5) {
+				throw new ProtocolException();
+			}
+			int haveIndex = is.readInt();
+			if (!pieceManager.isValidIndex(haveIndex)) {
+				throw new ProtocolException("have " + haveIndex);
+			}
+			if (!peerPieces.get(haveIndex)) {
+				peerPieces.set(haveIndex);
+				pieceManager.peerHas(haveIndex);
+			}
+			updateInterest();
+			break;
+		case TorrentFileHandlerTester.BITFIELD:
+			byte[] bitfield = new byte[prefixLength - 1];
+			is.readFully(bitfield);
+			if (!pieceManager.isValidBitfield(bitfield)) {
+				throw new ProtocolException("bitfield of " + bitfield.length
+						+ " bytes");
+			}
+			pieceManager.peerGone(peerPieces);
+			ToolKit.bytesToBitSet(bitfield, peerPieces);
+			pieceManager.peerHas(peerPieces);
+			updateInterest();
+			break;
+		case TorrentFileHandlerTester.PIECE:
+			if (prefixLength < 10) {
+				throw new ProtocolException();
+			}
+			int index = is.readInt();
+			int begin = is.readInt();
+			int length = prefixLength - 9;
+			if (length > PieceManager.BLOCK_SIZE) {
+				// we never ask for more than a block
+				throw new ProtocolException("block of " + length + " bytes");
+			}
+			if (!pieceManager.isValidBlock(index, begin, length)) {
+				throw new ProtocolException("piece " + index + " begin "
+						+ begin);
+			}
+			is.readFully(blockBuffer, 0, length);
+			pipeline.received(index, begin, length,
+					System.currentTimeMillis());
+			pieceManager.blockReceived(index, begin,
+					ByteBuffer.wrap(blockBuffer, 0, length), address);
+			if (pieceManager.isBanned(address)) {
+				throw new ProtocolException("peer sent corrupt pieces");
+			}
+			try {
+				// not reading the socket meanwhile lets TCP slow the peer
+				downloadLimiter.acquire(prefixLength + 4);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			break;
+		default:
+			// discard it
+			is.skipBytes(prefixLength - 1);
+			break;
+		}
+	}
+
+	private void updateInterest() throws IOException {
+		if (!amInterested && pieceManager.isInteresting(peerPieces)) {
+			amInterested = true;
+			peerStream.writeInt(1);
+			peerStream.writeByte(TorrentFileHandlerTester.INTERESTED);
+			peerStream.flush();
+		}
+	}
+
+	private void releaseRequests() {
+		for (BlockRequest request : pipeline.clear()) {
+			pieceManager.releaseRequest(request);
+		}
+	}
+
+	private void close() {
+		releaseRequests();
+		pieceManager.peerGone(peerPieces, address);
+		try {
+			peerSocket.close();
+		} catch (IOException e) {
+			// nothing left to do with this peer
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.bittorrentclient.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import com.bittorrentclient.model.BlockRequest;
+import com.bittorrentclient.model.PieceManager;
+
+/**
+ * The blocks requested from one peer that have not arrived yet. Instead of
+ * waiting a full round trip for every block, a connection keeps
+ * {@link #getDepth()} requests in flight. The depth follows the peer's
+ * measured download rate and round trip time, so that the peer always has
+ * about {@link #QUEUE_TIME} worth of requests queued.
+ *
+ * A pipeline belongs to a single connection and is not thread-safe.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class RequestPipeline {
+
+	public static final int MIN_DEPTH = 2;
+
+	public static final int MAX_DEPTH = 256;
+
+	public static final int INITIAL_DEPTH = 5;
+
+	// Milliseconds worth of data we want queued at the peer.
+	public static final int QUEUE_TIME = 1000;
+
+	private static final int RATE_WINDOW = 1000;
+
+	// request -> time it was sent
+	private final LinkedHashMap<BlockRequest, Long> outstanding = new LinkedHashMap<BlockRequest, Long>();
+
+	private int depth = INITIAL_DEPTH;
+
+	private long minRoundTrip = Long.MAX_VALUE;
+
+	private double rate; // bytes per second
+
+	private long windowStart = System.currentTimeMillis();
+
+	private long windowBytes;
+
+	/**
+	 * Returns true if another request can be sent without exceeding the
+	 * current depth.
+	 */
+	public boolean wantsMore() {
+		return outstanding.size() < depth;
+	}
+
+	public void sent(BlockRequest request, long now) {
+		outstanding.put(request, now);
+	}
+
+	/**
+	 * Removes the request answered by a PIECE message and updates the rate,
+	 * round trip and depth estimates.
+	 *
+	 * @return the matching request, or null if the block was never requested
+	 *         (or was cancelled) on this connection.
+	 */
+	public BlockRequest received(int index, int begin, int length,
+			long now) {
+		BlockRequest request = new BlockRequest(index, begin, length);
+		Long sentAt = outstanding.remove(request);
+		if (sentAt == null) {
+			return null;
+		}
+		minRoundTrip = Math.min(minRoundTrip, now - sentAt);
+		windowBytes += length;
+		long elapsed = now - windowStart;
+		if (elapsed >= RATE_WINDOW) {
+			double windowRate = windowBytes * 1000.0 / elapsed;
+			rate = rate == 0 ? windowRate : (rate + windowRate) / 2;
+			windowBytes = 0;
+			windowStart = now;
+			updateDepth();
+		}
+		return request;
+	}
+
+	private void updateDepth() {
+		// Never queue less than two round trips, otherwise the pipe drains
+		// between our request and the peer's reply.
+		long queueTime = Math.max(QUEUE_TIME, 2 * minRoundTrip);
+		int desired = (int) Math.ceil(
+				rate * queueTime / 1000 / PieceManager.BLOCK_SIZE);
+		depth = Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, desired));
+	}
+
+	/**
+	 * Forgets a request, for example after sending CANCEL for it.
+	 *
+	 * @return true if the request was outstanding.
+	 */
+	public boolean remove(BlockRequest request) {
+		return outstanding.remove(request) != null;
+	}
+
+	/**
+	 * Returns a read-only view of the requests in flight.
+	 */
+	public Set<BlockRequest> getRequests() {
+		return Collections.unmodifiableSet(outstanding.keySet());
+	}
+
+	/**
+	 * Empties the pipeline, returning every request still in flight so it can
+	 * be handed back to the PieceManager.
+	 */
+	public List<BlockRequest> clear() {
+		List<BlockRequest> requests = new ArrayList<BlockRequest>(
+				outstanding.keySet());
+		outstanding.clear();
+		return requests;
+	}
+
+	public int size() {
+		return outstanding.size();
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public double getRate() {
+		return rate;
+	}
+}
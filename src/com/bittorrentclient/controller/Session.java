@@ -0,0 +1,333 @@
+package com.bittorrentclient.controller;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.bittorrentclient.model.PieceManager;
+import com.bittorrentclient.services.PieceCache;
+import com.bittorrentclient.services.PieceVerifier;
+import com.bittorrentclient.services.RateLimiter;
+
+/**
+ * Runs many downloads at once on shared resources: one {@link PeerEngine} for
+ * every peer connection, so the connection limit is global, one
+ * {@link PieceVerifier} pool for hashing, one {@link PieceCache} for the
+ * blocks peers ask for, and one disk thread that opens downloads. Opening a
+ * download may mean checking gigabytes of existing data, so downloads are
+ * opened one at a time on the disk thread, where a long check delays the
+ * next download being opened but never the ones already running.
+ *
+ * Bandwidth is capped at three levels, each a {@link RateLimiter}: the
+ * session's limiters cap all downloads together, each download's limiters
+ * cap that torrent, and every connection gets limiters of its own at the
+ * per-peer rates. A rate of {@link RateLimiter#UNLIMITED} leaves that level
+ * uncapped.
+ *
+ * Every download is announced to its tracker by an
+ * {@link AnnounceScheduler}, and the peers each announce returns are
+ * connected to as they come in.
+ *
+ * Once a second the session reconnects to the peers of every unfinished
+ * download that has lost all its connections, and saves the progress of
+ * every download that is due to be saved. Adding or removing a download only
+ * touches that download.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class Session {
+
+	private static final int MAINTENANCE_INTERVAL = 1000;
+
+	public static final int DEFAULT_PORT = 6881;
+
+	private final byte[] peerId;
+
+	private final int connectTimeout;
+
+	private final PeerEngine engine;
+
+	private final PieceVerifier verifier;
+
+	private final PieceCache pieceCache = new PieceCache(
+			PieceCache.DEFAULT_CAPACITY);
+
+	private final ExecutorService disk;
+
+	private final ScheduledExecutorService maintenance;
+
+	private final AnnounceScheduler announcer;
+
+	private final RateLimiter downloadLimiter = new RateLimiter(
+			RateLimiter.UNLIMITED, null);
+
+	private final RateLimiter uploadLimiter = new RateLimiter(
+			RateLimiter.UNLIMITED, null);
+
+	private volatile long peerDownloadRate = RateLimiter.UNLIMITED;
+
+	private volatile long peerUploadRate = RateLimiter.UNLIMITED;
+
+	private final Set<Download> downloads = Collections
+			.newSetFromMap(new ConcurrentHashMap<Download, Boolean>());
+
+	public Session(byte[] peerId, int eventLoops, int maxConnections,
+			int hashingThreads, int connectTimeout) throws IOException {
+		this(peerId, DEFAULT_PORT, eventLoops, maxConnections,
+				hashingThreads, connectTimeout);
+	}
+
+	/**
+	 * @param port
+	 *            the port announced to trackers for peers to connect to.
+	 */
+	public Session(byte[] peerId, int port, int eventLoops,
+			int maxConnections, int hashingThreads, int connectTimeout)
+			throws IOException {
+		super();
+		this.peerId = peerId;
+		this.connectTimeout = connectTimeout;
+		this.engine = new PeerEngine(eventLoops, maxConnections,
+				connectTimeout, pieceCache);
+		this.verifier = new PieceVerifier(hashingThreads);
+		this.disk = Executors.newSingleThreadExecutor(newThreadFactory(
+				"session-disk"));
+		this.maintenance = Executors
+				.newSingleThreadScheduledExecutor(newThreadFactory(
+						"session-maintenance"));
+		this.announcer = new AnnounceScheduler(peerId, port, engine,
+				new AnnounceScheduler.Listener() {
+					public void peersReceived(Download download,
+							List<InetSocketAddress> peers) {
+						addPeers(download, peers);
+					}
+				}, connectTimeout);
+	}
+
+	private static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	public void start() {
+		engine.start();
+		announcer.start();
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					maintain();
+				} catch (RuntimeException e) {
+					// a failing run would cancel every later one
+					e.printStackTrace();
+				}
+			}
+		}, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public PeerEngine getEngine() {
+		return engine;
+	}
+
+	public AnnounceScheduler getAnnouncer() {
+		return announcer;
+	}
+
+	public PieceCache getPieceCache() {
+		return pieceCache;
+	}
+
+	/**
+	 * Returns the limiter of the session's total download rate.
+	 */
+	public RateLimiter getDownloadLimiter() {
+		return downloadLimiter;
+	}
+
+	/**
+	 * Returns the limiter of the session's total upload rate.
+	 */
+	public RateLimiter getUploadLimiter() {
+		return uploadLimiter;
+	}
+
+	/**
+	 * Sets the download and upload rates, in bytes per second, of each peer
+	 * connection made from now on.
+	 */
+	public void setPeerRates(long downloadRate, long uploadRate) {
+		this.peerDownloadRate = downloadRate;
+		this.peerUploadRate = uploadRate;
+	}
+
+	/**
+	 * Returns the downloads in the session, including those still being
+	 * opened.
+	 */
+	public List<Download> getDownloads() {
+		return new ArrayList<Download>(downloads);
+	}
+
+	/**
+	 * Adds <code>download</code> to the session. It is opened on the disk
+	 * thread and connects to its peers once open; the returned future gives
+	 * its PieceManager.
+	 */
+	public Future<PieceManager> add(final Download download) {
+		if (!downloads.add(download)) {
+			throw new IllegalStateException(download.getTorrentFile().name
+					+ " is already in the session.");
+		}
+		download.getDownloadLimiter().setParent(downloadLimiter);
+		download.getUploadLimiter().setParent(uploadLimiter);
+		return disk.submit(new Callable<PieceManager>() {
+			public PieceManager call() throws Exception {
+				if (!downloads.contains(download)) {
+					// removed before its turn came
+					return null;
+				}
+				PieceManager pieceManager;
+				try {
+					pieceManager = download.open(verifier);
+				} catch (Exception e) {
+					downloads.remove(download);
+					System.err.println("Error: could not open "
+							+ download.getTorrentFile().name + ": "
+							+ e.getMessage());
+					throw e;
+				}
+				if (!downloads.contains(download)) {
+					// removed while it was being opened
+					download.saveResume(true);
+					return pieceManager;
+				}
+				connect(download, pieceManager);
+				announcer.add(download);
+				return pieceManager;
+			}
+		});
+	}
+
+	/**
+	 * Removes <code>download</code> from the session. Its connections are
+	 * closed and its progress saved on the disk thread, so this returns
+	 * immediately.
+	 */
+	public void remove(final Download download) {
+		if (!downloads.remove(download)) {
+			return;
+		}
+		final PieceManager pieceManager = download.getPieceManager();
+		if (pieceManager == null) {
+			// not opened yet; the disk thread will skip or close it
+			return;
+		}
+		announcer.remove(download);
+		engine.disconnect(pieceManager);
+		disk.execute(new Runnable() {
+			public void run() {
+				// connections close on their event loops; give them a
+				// moment so none is writing when the storage closes
+				long deadline = System.currentTimeMillis() + connectTimeout;
+				while (engine.getConnectionCount(pieceManager) > 0
+						&& System.currentTimeMillis() < deadline) {
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				download.saveResume(true);
+				pieceCache.invalidate(pieceManager.getStorage());
+			}
+		});
+	}
+
+	private void connect(Download download, PieceManager pieceManager) {
+		for (InetSocketAddress peer : download.getPeers()) {
+			connect(download, pieceManager, peer);
+		}
+	}
+
+	private void connect(Download download, PieceManager pieceManager,
+			InetSocketAddress peer) {
+		engine.connect(peer, pieceManager, peerId, new RateLimiter(
+				peerDownloadRate, download.getDownloadLimiter()),
+				new RateLimiter(peerUploadRate, download.getUploadLimiter()));
+	}
+
+	/*
+	 * Called by the announcer with the peers a tracker returned. New peers
+	 * are added to the download's peer list and connected to right away if
+	 * the download is not complete yet; the engine skips peers it is already
+	 * connected to.
+	 */
+	private void addPeers(Download download, List<InetSocketAddress> peers) {
+		if (!downloads.contains(download)) {
+			return;
+		}
+		Set<InetSocketAddress> known = new LinkedHashSet<InetSocketAddress>(
+				download.getPeers());
+		known.addAll(peers);
+		download.setPeers(new ArrayList<InetSocketAddress>(known));
+		PieceManager pieceManager = download.getPieceManager();
+		if (pieceManager != null && !pieceManager.isComplete()) {
+			for (InetSocketAddress peer : peers) {
+				connect(download, pieceManager, peer);
+			}
+		}
+	}
+
+	private void maintain() {
+		for (Download download : downloads) {
+			PieceManager pieceManager = download.getPieceManager();
+			if (pieceManager == null) {
+				continue;
+			}
+			if (!pieceManager.isComplete()
+					&& engine.getConnectionCount(pieceManager) == 0) {
+				connect(download, pieceManager);
+			}
+			download.saveResumeIfDue();
+		}
+	}
+
+	/**
+	 * Stops every download, saving its progress, and releases the shared
+	 * threads.
+	 */
+	public void shutdown() {
+		maintenance.shutdownNow();
+		// tells the trackers we are leaving, before the connections go
+		announcer.shutdown(connectTimeout);
+		disk.shutdownNow();
+		try {
+			disk.awaitTermination(connectTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		engine.shutdown();
+		verifier.shutdown();
+		for (Download download : downloads) {
+			download.saveResume(true);
+		}
+		downloads.clear();
+	}
+}
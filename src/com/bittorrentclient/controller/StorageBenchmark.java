@@ -0,0 +1,80 @@
+package com.bittorrentclient.controller;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.bittorrentclient.model.PieceManager;
+import com.bittorrentclient.services.FileChannelStorage;
+import com.bittorrentclient.services.MappedFileStorage;
+import com.bittorrentclient.services.PieceStorage;
+
+/**
+ * Compares the storage backends by writing a file of 16 KiB blocks in random
+ * order, the way blocks arrive from a swarm. Run with the file size in MB and
+ * optionally the directory for the scratch file.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class StorageBenchmark {
+
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		long size = (args.length > 0 ? Long.parseLong(args[0]) : 512) << 20;
+		File directory = new File(args.length > 1 ? args[1]
+				: System.getProperty("java.io.tmpdir"));
+
+		int blocks = (int) (size / PieceManager.BLOCK_SIZE);
+		int[] order = new int[blocks];
+		Random random = new Random(42);
+		for (int i = 0; i < blocks; i++) {
+			order[i] = i;
+		}
+		for (int i = blocks - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+		byte[] block = new byte[PieceManager.BLOCK_SIZE];
+		random.nextBytes(block);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			File file = File.createTempFile("storage", ".bin", directory);
+			file.deleteOnExit();
+
+			PieceStorage storage = new FileChannelStorage(file, size);
+			long start = System.nanoTime();
+			for (int i : order) {
+				storage.write((long) i * block.length, ByteBuffer.wrap(block));
+			}
+			storage.close();
+			report("FileChannel positional writes", size, start);
+
+			storage = new MappedFileStorage(file, size);
+			start = System.nanoTime();
+			for (int i : order) {
+				storage.write((long) i * block.length, ByteBuffer.wrap(block));
+			}
+			storage.close();
+			report("Mapped writes", size, start);
+
+			storage = new MappedFileStorage(file, size);
+			start = System.nanoTime();
+			for (int i : order) {
+				storage.map((long) i * block.length, block.length).put(block);
+			}
+			storage.close();
+			report("Mapped direct puts", size, start);
+
+			file.delete();
+		}
+	}
+
+	private static void report(String name, long size, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%-32s %8.1f MB/s", name,
+				size / seconds / (1 << 20)));
+	}
+}
@@ -7,26 +7,31 @@ package com.bittorrentclient.controller;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.net.Socket;
-import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import com.bittorrentclient.model.Announce;
+import com.bittorrentclient.model.PieceManager;
 import com.bittorrentclient.model.TorrentFile;
 import com.bittorrentclient.model.TorrentFileHandler;
-import com.bittorrentclient.services.Bencoder2;
-import com.bittorrentclient.services.ToolKit;
-import com.bittorrentclient.services.Utilities;
+import com.bittorrentclient.model.TrackerResponse;
+import com.bittorrentclient.services.HttpTracker;
+import com.bittorrentclient.services.PieceStorage;
+import com.bittorrentclient.services.PieceVerifier;
+import com.bittorrentclient.services.RateLimiter;
+import com.bittorrentclient.services.UdpTracker;
 import com.bittorrentclient.services.Utils;
 
 public class TorrentFileHandlerTester {
@@ -37,6 +42,34 @@ public class TorrentFileHandlerTester {
 	private static String torrentFilePath;
 	private static String torrentOutputFileName;
 
+	/*
+	 * How the pieces are downloaded. The sequential mode visits one peer at a
+	 * time with blocking sockets, the selector mode talks to every peer at
+	 * once through a PeerEngine and the virtual mode runs a blocking
+	 * PeerSession per peer, each on its own (virtual) thread.
+	 */
+	public static final String MODE_SEQUENTIAL = "sequential";
+	public static final String MODE_SELECTOR = "selector";
+	public static final String MODE_VIRTUAL = "virtual";
+	private static String downloadMode = MODE_SELECTOR;
+
+	/*
+	 * Where downloaded blocks are stored: written with positional
+	 * FileChannel writes, or read from the network into a memory mapping of
+	 * the output file.
+	 */
+	public static final String STORAGE_FILE = "file";
+	public static final String STORAGE_MMAP = "mmap";
+	private static String storageType = STORAGE_FILE;
+
+	/*
+	 * Optional caps on the download and upload rates of the selector and
+	 * virtual modes, in bytes per second; 0 for no cap. Given on the command
+	 * line in KiB/s.
+	 */
+	private static long downloadRate = RateLimiter.UNLIMITED;
+	private static long uploadRate = RateLimiter.UNLIMITED;
+
 	/*
 	 * Added Variable Below for getting the peers
 	 */
@@ -47,8 +80,12 @@ public class TorrentFileHandlerTester {
 	Long leftBytes;
 	String event;
 	List<String> peerList;
+	List<InetSocketAddress> peers;
 	int interval;
 	int min_interval;
+	// the tracker's answer to the first announce, handed on to the session
+	TrackerResponse trackerResponse;
+	long announcedAt;
 	Socket peerSocket;
 	Socket peerSuccessfulSocket;// when the handshake has been successful only
 								// then
@@ -73,9 +110,13 @@ public class TorrentFileHandlerTester {
 
 	final int BLOCK_SIZE = 16384;
 
+	// a UDP tracker is asked 4 times, waiting 2, 4, 8 and 16 seconds
+	final int UDP_TRACKER_RETRIES = 3;
+
 	boolean completedPieces[];
 
-	ArrayList<ArrayList<byte[]>> piecesList;
+	// where the sequential mode writes blocks as they arrive
+	PieceStorage sequentialStorage;
 
 	/**
 	 * Invokes a private method to load a specific .torrent file, parse it, and
@@ -91,6 +132,7 @@ public class TorrentFileHandlerTester {
 		this.event = "started";
 		this.socketTimeout = 2000;
 		peerList = new ArrayList<String>();
+		peers = new ArrayList<InetSocketAddress>();
 		testTorrentFileHandler();
 	}
 
@@ -103,7 +145,7 @@ public class TorrentFileHandlerTester {
 	 * @throws Exception
 	 */
 	public static void main(String[] args) throws Exception {
-		if (args.length != 2) {
+		if (args.length < 2 || args.length > 6) {
 			System.out.println(
 					"Torrent input file and torrent output file name not specified. Args are:");
 			for (String arg : args) {
@@ -114,6 +156,18 @@ public class TorrentFileHandlerTester {
 
 		torrentFilePath = new String(args[0]);
 		torrentOutputFileName = new String(args[1]);
+		if (args.length >= 3) {
+			downloadMode = args[2];
+		}
+		if (args.length >= 4) {
+			storageType = args[3];
+		}
+		if (args.length >= 5) {
+			downloadRate = Long.parseLong(args[4]) * 1024;
+		}
+		if (args.length == 6) {
+			uploadRate = Long.parseLong(args[5]) * 1024;
+		}
 
 		TorrentFileHandlerTester tfht = new TorrentFileHandlerTester();
 		System.out.println(tfht.torrent_file.tracker_url);
@@ -122,7 +176,7 @@ public class TorrentFileHandlerTester {
 			tfht.sendGet(tfht.torrent_file.tracker_url,
 					tfht.torrent_file.info_hash_as_url, tfht.peerID,
 					tfht.portNumber, tfht.downloadedBytes, tfht.uploadedBytes,
-					new Long(tfht.torrent_file.file_length), tfht.event);
+					Long.valueOf(tfht.torrent_file.file_length), tfht.event);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -134,11 +188,8 @@ public class TorrentFileHandlerTester {
 				.openTorrentFile(TorrentFileHandlerTester.torrentFilePath);
 
 		if (torrent_file != null) {
-			NumberOfPiecesToDownload = torrent_file.piece_hash_values_as_url
-					.size();
+			NumberOfPiecesToDownload = torrent_file.piece_hashes.size();
 			completedPieces = new boolean[NumberOfPiecesToDownload];
-			piecesList = new ArrayList<ArrayList<byte[]>>(
-					NumberOfPiecesToDownload);
 			for (int i = 0; i < completedPieces.length; i++) {
 				completedPieces[i] = false;
 			}
@@ -149,11 +200,9 @@ public class TorrentFileHandlerTester {
 					"Piece Size (Bytes): " + torrent_file.piece_length);
 			System.out.println(
 					"SHA-1 Info Hash: " + torrent_file.info_hash_as_url);
-			for (int i = 0; i < torrent_file.piece_hash_values_as_hex
-					.size(); i++) {
+			for (int i = 0; i < torrent_file.piece_hashes.size(); i++) {
 				System.out.println("SHA-1 Hash for Piece [" + i + "]: "
-						+ (String) torrent_file.piece_hash_values_as_url
-								.elementAt(i));
+						+ torrent_file.piece_hashes.getURL(i));
 			}
 		} else {
 			System.err.println(
@@ -162,50 +211,70 @@ public class TorrentFileHandlerTester {
 		}
 	}
 
-	@SuppressWarnings("rawtypes")
 	public void sendGet(String announce, String infoHashUrl, String peer_id,
 			Integer port, Long uploadedBytes, Long downloadedBytes,
 			Long leftBytes, String event) throws Exception {
 
-		// Create the URL for the get request
-		String peerIDEncoding = ToolKit.makeHTTPEscaped(peer_id);
-		String query = String.format(
-				"info_hash=%s&peer_id=%s&port=%s&uploaded=%s&downloaded=%s&left=%s&event=%s",
-				infoHashUrl, peerIDEncoding, port, uploadedBytes,
-				downloadedBytes, leftBytes, event);
-		URL trackerUrl = new URL(announce + "?" + query);
+		Announce request = new Announce(torrent_file.info_hash_as_binary,
+				peer_id.getBytes(), port);
+		request.uploaded = uploadedBytes;
+		request.downloaded = downloadedBytes;
+		request.left = leftBytes;
+		request.event = event;
 
 		// contact the tracker url
+		peers = new ArrayList<InetSocketAddress>();
+		peerList = new ArrayList<String>();
 		try {
-			InputStream inputStreamFromServer = trackerUrl.openStream();
-			byte[] responseInBytes = new byte[512];
-			int b = -1;
-			int pos = 0;
-			while ((b = inputStreamFromServer.read()) != -1) {
-				responseInBytes[pos] = (byte) b;
-				++pos;
+			TrackerResponse response;
+			if (announce.startsWith("udp://")) {
+				UdpTracker udpTracker = new UdpTracker(socketTimeout,
+						UDP_TRACKER_RETRIES);
+				try {
+					response = udpTracker.announce(announce, request);
+				} finally {
+					udpTracker.close();
+				}
+			} else {
+				response = new HttpTracker(socketTimeout).announce(announce,
+						request);
+			}
+			if (response.isFailure()) {
+				System.err.println("Tracker failure: "
+						+ response.failure_reason);
+			}
+			interval = response.interval;
+			min_interval = response.min_interval;
+			if (!response.isFailure()) {
+				trackerResponse = response;
+				announcedAt = System.currentTimeMillis();
 			}
 			// get the peer list along with port number to contact
-			Map trackerResponse = (Map) Bencoder2.decode(responseInBytes);
-			peerList = new ArrayList<String>(Arrays
-					.asList(Utilities.decodeCompressedPeers(trackerResponse)));
-			HashSet<String> hs = new HashSet<String>();
-			hs.addAll(peerList);
-			peerList.clear();
-			peerList.addAll(hs);
-			ArrayList<String> peerListTemp = new ArrayList<String>();
-			for (int i = 0; i < peerList.size(); i++) {
-				peerListTemp.add(peerList.get(i));
-				System.out.println(peerList.get(i));
+			for (InetSocketAddress peer : new LinkedHashSet<InetSocketAddress>(
+					response.peers)) {
+				peers.add(peer);
+				peerList.add(peer.getHostString() + ":" + peer.getPort());
+				System.out.println(peer.getHostString() + ":"
+						+ peer.getPort());
 			}
-			peerList = peerListTemp;
-
-			inputStreamFromServer.close();
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 
+		if (!MODE_SEQUENTIAL.equals(downloadMode)) {
+			long start = System.currentTimeMillis();
+			if (MODE_VIRTUAL.equals(downloadMode)) {
+				downloadWithSessions();
+			} else {
+				downloadWithSelector();
+			}
+			System.out.println("Download took "
+					+ (System.currentTimeMillis() - start) + " ms in "
+					+ downloadMode + " mode");
+			return;
+		}
+
 		// for each and every peer try to make a connection
 		// if file has been downloaded before reaching all the peers
 		// then exit before hand
@@ -227,6 +296,94 @@ public class TorrentFileHandlerTester {
 		}
 	}
 
+	/**
+	 * Returns the download of the torrent into the output file, or for a
+	 * multi-file torrent into a directory named like the output file.
+	 */
+	private Download newDownload() {
+		if (torrent_file.multi_file && STORAGE_MMAP.equals(storageType)) {
+			System.out.println(
+					"Multi-file torrents are stored with FileChannel writes");
+		}
+		Download download = new Download(torrent_file, new File(
+				TorrentFileHandlerTester.torrentOutputFileName),
+				STORAGE_MMAP.equals(storageType));
+		download.setPeers(peers);
+		if (trackerResponse != null) {
+			download.setTrackerResponse(trackerResponse, announcedAt);
+		}
+		return download;
+	}
+
+	/**
+	 * Downloads the file from every peer in the peer list at once, in a
+	 * Session of its own. The session contacts the peers again whenever all
+	 * connections have been lost before the download finished, and announces
+	 * again on the tracker's interval, or sooner when it is short of peers.
+	 */
+	public void downloadWithSelector() throws Exception {
+		Session session = new Session(peerID.getBytes(),
+				PeerEngine.DEFAULT_EVENT_LOOPS,
+				PeerEngine.DEFAULT_MAX_CONNECTIONS,
+				PieceVerifier.DEFAULT_THREADS, socketTimeout);
+		session.getDownloadLimiter().setRate(downloadRate);
+		session.getUploadLimiter().setRate(uploadRate);
+		session.start();
+		PieceManager pieceManager = null;
+		try {
+			pieceManager = session.add(newDownload()).get();
+			while (!pieceManager.isComplete()) {
+				pieceManager.awaitCompletion(socketTimeout);
+			}
+		} finally {
+			session.shutdown();
+			if (pieceManager != null) {
+				downloadedBytes = pieceManager.getDownloadedBytes();
+			}
+		}
+		System.out.println("File downloaded");
+	}
+
+	/**
+	 * Downloads the file by running one blocking PeerSession per peer, all
+	 * at the same time. Peers are contacted again whenever every session has
+	 * ended before the download finished.
+	 */
+	public void downloadWithSessions() throws Exception {
+		PieceVerifier verifier = new PieceVerifier(
+				PieceVerifier.DEFAULT_THREADS);
+		Download download = newDownload();
+		download.getDownloadLimiter().setRate(downloadRate);
+		PieceManager pieceManager = download.open(verifier);
+		ExecutorService executor = PeerSession.newSessionExecutor();
+		List<Future<?>> sessions = new ArrayList<Future<?>>();
+		try {
+			while (!pieceManager.isComplete()) {
+				boolean running = false;
+				for (Future<?> session : sessions) {
+					running |= !session.isDone();
+				}
+				if (!running) {
+					sessions.clear();
+					for (InetSocketAddress peer : download.getPeers()) {
+						sessions.add(executor.submit(new PeerSession(
+								peer.getHostString(), peer.getPort(),
+								pieceManager, peerID.getBytes(),
+								socketTimeout, download.getDownloadLimiter())));
+					}
+				}
+				pieceManager.awaitCompletion(socketTimeout);
+				download.saveResumeIfDue();
+			}
+		} finally {
+			executor.shutdownNow();
+			verifier.shutdown();
+			downloadedBytes = pieceManager.getDownloadedBytes();
+			download.saveResume(true);
+		}
+		System.out.println("File downloaded");
+	}
+
 	public void peerHandshake(String peer) throws Exception {
 		String[] ipAddressAndPort = peer.split(":");
 		String ipAddress = ipAddressAndPort[0];
@@ -393,7 +550,6 @@ public class TorrentFileHandlerTester {
 	private void requestPieces(BitSet torrentBitSet) {
 		int index = getNextPieceIndex(0, torrentBitSet);
 		if (!completedPieces[index]) {
-			piecesList.add(index, new ArrayList<byte[]>());
 			int downloadedPieceBytes = 0;
 			int begin = 0;
 			boolean stop = false;
@@ -460,7 +616,7 @@ public class TorrentFileHandlerTester {
 							addDownLoadedBytes(prefixLength - 9);
 							is.readFully(block);
 
-							piecesList.get(index).add(block);
+							writeBlock(thisIndex, thisBegin, block);
 							downloadedPieceBytes = downloadedPieceBytes
 									+ prefixLength - 9;
 							begin = begin + prefixLength - 9;
@@ -495,7 +651,6 @@ public class TorrentFileHandlerTester {
 						downloadedPieceBytes = 0;
 						begin = 0;
 						index++;
-						piecesList.add(index, new ArrayList<byte[]>());
 					}
 
 				} catch (Exception e) {
@@ -506,20 +661,25 @@ public class TorrentFileHandlerTester {
 		}
 	}
 
+	/**
+	 * Writes a block of the sequential download at its place in the output
+	 * file.
+	 */
+	private void writeBlock(int index, int begin, byte[] block)
+			throws IOException {
+		if (sequentialStorage == null) {
+			sequentialStorage = newDownload().openStorage();
+		}
+		sequentialStorage.write(
+				(long) index * torrent_file.piece_length + begin,
+				ByteBuffer.wrap(block));
+	}
+
 	public void writeFile() {
 		try {
-			// convert array of bytes into file
-			FileOutputStream fileOuputStream = new FileOutputStream(
-					TorrentFileHandlerTester.torrentOutputFileName);
-
-			for (int i = 0; i < piecesList.size(); i++) {
-				ArrayList<byte[]> myList = piecesList.get(i);
-				for (int x = 0; x < myList.size(); x++) {
-					byte[] block = myList.get(x);
-					fileOuputStream.write(block);
-				}
+			if (sequentialStorage != null) {
+				sequentialStorage.close();
 			}
-			fileOuputStream.close();
 			System.out.println("Done");
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,91 @@
+package com.bittorrentclient.controller;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.bittorrentclient.model.Announce;
+import com.bittorrentclient.model.TrackerResponse;
+import com.bittorrentclient.services.LocalUdpTracker;
+import com.bittorrentclient.services.UdpTracker;
+
+/**
+ * Runs {@link UdpTracker} against a {@link LocalUdpTracker}: a first announce
+ * whose connect is lost and has to be sent again, a second one that reuses
+ * the connection id, and a third after the tracker has forgotten every id,
+ * which must connect again. Exits with status 1 if any step goes wrong.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class UdpTrackerTester {
+
+	private static final int TIMEOUT = 200;
+
+	private static final int RETRIES = 3;
+
+	private static int failures;
+
+	public static void main(String[] args) throws Exception {
+		List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+		peers.add(new InetSocketAddress(InetAddress.getByName("10.0.0.1"),
+				6881));
+		peers.add(new InetSocketAddress(InetAddress.getByName("10.0.0.2"),
+				6882));
+		// left out of the replies
+		peers.add(new InetSocketAddress(InetAddress.getByName("::1"), 6883));
+		LocalUdpTracker tracker = new LocalUdpTracker(0, peers, 1800);
+		UdpTracker client = new UdpTracker(TIMEOUT, RETRIES);
+		String url = tracker.getAnnounceUrl();
+		Announce announce = new Announce(new byte[20], new byte[20], 6881);
+		announce.left = 1000;
+
+		try {
+			tracker.drop(1);
+			announce.event = Announce.EVENT_STARTED;
+			TrackerResponse response = client.announce(url, announce);
+			check("announce after a lost connect", response, 2);
+			check("connects", tracker.getConnects(), 1);
+			check("event", tracker.getLastEvent(), Announce.EVENT_STARTED);
+
+			announce.event = Announce.EVENT_NONE;
+			response = client.announce(url, announce);
+			check("announce with the kept connection id", response, 2);
+			check("connects", tracker.getConnects(), 1);
+
+			tracker.expireConnections();
+			announce.event = Announce.EVENT_COMPLETED;
+			announce.left = 0;
+			response = client.announce(url, announce);
+			check("announce after the ids expired", response, 2);
+			check("connects", tracker.getConnects(), 2);
+			check("event", tracker.getLastEvent(), Announce.EVENT_COMPLETED);
+			check("left", tracker.getLastLeft(), 0L);
+		} finally {
+			client.close();
+			tracker.close();
+		}
+		System.out.println(failures == 0 ? "All checks passed" : failures
+				+ " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static void check(String step, TrackerResponse response,
+			int numberOfPeers) {
+		if (response.isFailure()) {
+			check(step, response.failure_reason, null);
+		} else {
+			check(step + ": peers", response.peers.size(), numberOfPeers);
+		}
+	}
+
+	private static void check(String step, Object actual, Object expected) {
+		boolean passed = expected == null ? actual == null : expected
+				.equals(actual);
+		System.out.println((passed ? "ok     " : "FAILED ") + step + ": "
+				+ actual + (passed ? "" : ", expected " + expected));
+		if (!passed) {
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.bittorrentclient.model;
+
+/**
+ * The parameters of one announce to a tracker: which torrent and peer it is
+ * for, where the peer listens, and how far along the download is.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class Announce {
+
+	/*
+	 * Values of the event parameter; an announce without an event is one of
+	 * the regular ones sent every interval.
+	 */
+	public static final String EVENT_NONE = null;
+	public static final String EVENT_STARTED = "started";
+	public static final String EVENT_COMPLETED = "completed";
+	public static final String EVENT_STOPPED = "stopped";
+
+	// how many peers we ask for when nothing else is set
+	public static final int DEFAULT_NUMWANT = 50;
+
+	public final byte[] info_hash;
+	public final byte[] peer_id;
+	public final int port;
+
+	public long uploaded;
+	public long downloaded;
+	public long left;
+	public String event = EVENT_NONE;
+	public int numwant = DEFAULT_NUMWANT;
+
+	// the tracker id the tracker gave in an earlier response, if any
+	public String tracker_id;
+
+	public Announce(byte[] info_hash, byte[] peer_id, int port) {
+		super();
+		this.info_hash = info_hash;
+		this.peer_id = peer_id;
+		this.port = port;
+	}
+}
@@ -0,0 +1,40 @@
+package com.bittorrentclient.model;
+
+/**
+ * Identifies one block of a piece as it appears in REQUEST, PIECE and CANCEL
+ * messages: <code>&lt;index&gt;&lt;begin&gt;&lt;length&gt;</code>.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public final class BlockRequest {
+
+	public final int index;
+	public final int begin;
+	public final int length;
+
+	public BlockRequest(int index, int begin, int length) {
+		this.index = index;
+		this.begin = begin;
+		this.length = length;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof BlockRequest)) {
+			return false;
+		}
+		BlockRequest other = (BlockRequest) o;
+		return index == other.index && begin == other.begin
+				&& length == other.length;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * index + begin;
+	}
+
+	@Override
+	public String toString() {
+		return "<" + index + "," + begin + "," + length + ">";
+	}
+}
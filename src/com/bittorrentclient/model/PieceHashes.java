@@ -0,0 +1,91 @@
+package com.bittorrentclient.model;
+
+import java.nio.ByteBuffer;
+
+import com.bittorrentclient.services.Utils;
+
+/**
+ * The SHA-1 hashes of a torrent's pieces, kept back to back in one array of
+ * <code>20 * n</code> bytes, the way they appear in the 'pieces' string of a
+ * .torrent file. A torrent with 200k pieces costs one 4 MB array instead of
+ * hundreds of thousands of small objects. The hex and URL-escaped forms are
+ * only computed when asked for, and a digest is checked against its piece
+ * without copying the expected hash out.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class PieceHashes {
+
+	public static final int HASH_LENGTH = 20;
+
+	private final byte[] hashes;
+
+	/**
+	 * Copies the remaining bytes of <code>hashes</code>, whose length must be
+	 * a multiple of 20. The buffer's position is not changed.
+	 */
+	public PieceHashes(ByteBuffer hashes) {
+		super();
+		if (hashes.remaining() % HASH_LENGTH != 0) {
+			throw new IllegalArgumentException(hashes.remaining()
+					+ " bytes are not a whole number of SHA-1 hashes.");
+		}
+		this.hashes = new byte[hashes.remaining()];
+		hashes.duplicate().get(this.hashes);
+	}
+
+	/**
+	 * Returns the number of pieces.
+	 */
+	public int size() {
+		return hashes.length / HASH_LENGTH;
+	}
+
+	/**
+	 * Returns a copy of the hash of piece <code>index</code>.
+	 */
+	public byte[] get(int index) {
+		byte[] hash = new byte[HASH_LENGTH];
+		System.arraycopy(hashes, offset(index), hash, 0, HASH_LENGTH);
+		return hash;
+	}
+
+	/**
+	 * Returns the hash of piece <code>index</code> as 40 hex digits.
+	 */
+	public String getHex(int index) {
+		return Utils.byteArrayToByteString(get(index));
+	}
+
+	/**
+	 * Returns the hash of piece <code>index</code> HTTP-escaped.
+	 */
+	public String getURL(int index) {
+		return Utils.byteArrayToURLString(get(index));
+	}
+
+	/**
+	 * Returns true if <code>digest</code>, a computed SHA-1, is the hash of
+	 * piece <code>index</code>.
+	 */
+	public boolean matches(int index, byte[] digest) {
+		if (digest.length != HASH_LENGTH) {
+			return false;
+		}
+		int start = offset(index);
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			if (hashes[start + i] != digest[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int offset(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Piece " + index + " of "
+					+ size());
+		}
+		return index * HASH_LENGTH;
+	}
+}
@@ -0,0 +1,739 @@
+package com.bittorrentclient.model;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.bittorrentclient.services.PieceDigest;
+import com.bittorrentclient.services.PieceStorage;
+import com.bittorrentclient.services.PieceVerifier;
+import com.bittorrentclient.services.ResumeFile;
+
+/**
+ * Keeps track of which pieces and blocks of a torrent have been requested and
+ * received. A single PieceManager is shared by every peer connection of a
+ * download, so all state changing methods are synchronized.
+ *
+ * Received blocks go straight to a {@link PieceStorage} at their offset in
+ * the torrent; only the request bookkeeping of pieces in flight is kept in
+ * memory. Storage writes happen outside the lock so connections do not wait
+ * on each other's disk I/O.
+ *
+ * Every stored block is handed to a {@link PieceVerifier}, which keeps a
+ * running SHA-1 hash of its piece, and a piece only counts as complete once
+ * its hash matches.
+ * Otherwise it is downloaded again. A peer that sent the whole piece gets a
+ * strike, and peers with {@link #MAX_HASH_FAILURES} strikes are banned. When
+ * several peers contributed, the culprit is unknown, so they are all put on
+ * parole: they only download whole pieces on their own until one of those
+ * passes, which either clears them or earns them a strike.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class PieceManager {
+
+	public static final int BLOCK_SIZE = 16384;
+
+	// In endgame mode a block is requested from at most this many peers.
+	public static final int MAX_ENDGAME_REQUESTS = 3;
+
+	public static final int MAX_HASH_FAILURES = 3;
+
+	/**
+	 * Told about every piece that passes its hash check, so peers can be sent
+	 * HAVE messages. Called with the PieceManager locked; implementations
+	 * must return quickly and not call back into it.
+	 */
+	public interface Listener {
+		void pieceCompleted(PieceManager pieceManager, int index);
+	}
+
+	/*
+	 * A piece for which at least one block has been requested but which is
+	 * not complete yet.
+	 */
+	private static class PartialPiece {
+		final BitSet requested = new BitSet();
+		final BitSet received = new BitSet();
+		final int length;
+		final int numberOfBlocks;
+		// number of peers each block is requested from
+		final int[] requests;
+		// blocks claimed but not yet written to storage
+		int writing;
+		// peers that sent blocks of this piece
+		final Set<InetSocketAddress> sources = new HashSet<InetSocketAddress>();
+		// the peer on parole downloading this piece alone, or null
+		InetSocketAddress owner;
+		PieceDigest digest;
+
+		PartialPiece(int pieceLength) {
+			length = pieceLength;
+			numberOfBlocks = (pieceLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			requests = new int[numberOfBlocks];
+		}
+	}
+
+	private final TorrentFile torrentFile;
+
+	private final int numberOfPieces;
+
+	private final BitSet completedPieces;
+
+	// pieces that are complete or have a PartialPiece
+	private final BitSet startedPieces;
+
+	private final Map<Integer, PartialPiece> partialPieces;
+
+	private final PiecePicker piecePicker;
+
+	private final PieceStorage storage;
+
+	private final PieceVerifier verifier;
+
+	// peer -> number of pieces it sent that failed the hash check
+	private final Map<InetSocketAddress, Integer> hashFailures;
+
+	// peers that contributed to a piece that failed the hash check
+	private final Set<InetSocketAddress> parole;
+
+	private long downloadedBytes;
+
+	private long uploadedBytes;
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	public PieceManager(TorrentFile torrentFile, PieceStorage storage,
+			PieceVerifier verifier) {
+		super();
+		this.torrentFile = torrentFile;
+		this.numberOfPieces = torrentFile.piece_hashes.size();
+		this.completedPieces = new BitSet(numberOfPieces);
+		this.startedPieces = new BitSet(numberOfPieces);
+		this.partialPieces = new HashMap<Integer, PartialPiece>();
+		this.piecePicker = new PiecePicker(numberOfPieces);
+		this.storage = storage;
+		this.verifier = verifier;
+		this.hashFailures = new HashMap<InetSocketAddress, Integer>();
+		this.parole = new HashSet<InetSocketAddress>();
+	}
+
+	public TorrentFile getTorrentFile() {
+		return torrentFile;
+	}
+
+	public PieceStorage getStorage() {
+		return storage;
+	}
+
+	public int getNumberOfPieces() {
+		return numberOfPieces;
+	}
+
+	/**
+	 * Returns true if <code>index</code>, as sent by a peer, is the index of
+	 * a piece of this torrent.
+	 */
+	public boolean isValidIndex(int index) {
+		return index >= 0 && index < numberOfPieces;
+	}
+
+	/**
+	 * Returns true if <code>bitfield</code>, as sent by a peer, has one bit
+	 * per piece rounded up to whole bytes, with the spare bits at the end
+	 * cleared.
+	 */
+	public boolean isValidBitfield(byte[] bitfield) {
+		if (bitfield.length != (numberOfPieces + 7) / 8) {
+			return false;
+		}
+		int spare = numberOfPieces % 8;
+		return spare == 0
+				|| (bitfield[bitfield.length - 1] & (0xff >>> spare)) == 0;
+	}
+
+	/**
+	 * Returns true if the block at <code>begin</code> of piece
+	 * <code>index</code>, as sent by a peer, lies within that piece.
+	 */
+	public boolean isValidBlock(int index, int begin, int length) {
+		return isValidIndex(index) && begin >= 0 && length >= 0
+				&& begin < getPieceLength(index)
+				&& length <= getPieceLength(index) - begin;
+	}
+
+	/**
+	 * Returns the length of the piece at <code>index</code>. Every piece is
+	 * <code>piece_length</code> bytes long except the last one, which holds
+	 * whatever is left of the file.
+	 */
+	public int getPieceLength(int index) {
+		if (index == numberOfPieces - 1) {
+			return (int) (torrentFile.file_length
+					- (long) index * torrentFile.piece_length);
+		}
+		return torrentFile.piece_length;
+	}
+
+	/**
+	 * Records that a peer announced the piece at <code>index</code> in a HAVE
+	 * message.
+	 */
+	public synchronized void peerHas(int index) {
+		piecePicker.increment(index);
+	}
+
+	/**
+	 * Records the pieces a peer announced in its BITFIELD message.
+	 */
+	public synchronized void peerHas(BitSet peerPieces) {
+		piecePicker.incrementAll(peerPieces);
+	}
+
+	/**
+	 * Forgets the pieces of a peer that disconnected.
+	 */
+	public synchronized void peerGone(BitSet peerPieces) {
+		piecePicker.decrementAll(peerPieces);
+	}
+
+	/**
+	 * Forgets a peer that disconnected, including the pieces it owned while
+	 * on parole, so other peers can finish them.
+	 */
+	public synchronized void peerGone(BitSet peerPieces,
+			InetSocketAddress peer) {
+		peerGone(peerPieces);
+		for (PartialPiece piece : partialPieces.values()) {
+			if (peer.equals(piece.owner)) {
+				piece.owner = null;
+			}
+		}
+	}
+
+	/**
+	 * Picks the next block to request from a peer that has the pieces in
+	 * <code>peerPieces</code>. Pieces that are already partially downloaded
+	 * are finished first; after that the {@link PiecePicker} chooses a new
+	 * piece, rarest first.
+	 *
+	 * Once every missing block has been requested the download is in endgame
+	 * mode, and blocks that are still outstanding elsewhere are handed out
+	 * again so the last pieces do not depend on a single slow peer.
+	 *
+	 * @param peerPieces
+	 *            the pieces the peer has.
+	 * @param pending
+	 *            the blocks already requested from this peer.
+	 * @param peer
+	 *            the peer the block will be requested from.
+	 * @return the block to request, or null if the peer has nothing we need.
+	 */
+	public synchronized BlockRequest nextRequest(BitSet peerPieces,
+			Set<BlockRequest> pending, InetSocketAddress peer) {
+		boolean onParole = parole.contains(peer);
+		for (Map.Entry<Integer, PartialPiece> entry : partialPieces
+				.entrySet()) {
+			int index = entry.getKey();
+			PartialPiece piece = entry.getValue();
+			if (!peerPieces.get(index) || !mayRequest(piece, peer, onParole)) {
+				continue;
+			}
+			if (onParole && piece.owner == null) {
+				// start over so the piece holds only this peer's data
+				downloadedBytes -= receivedBytes(piece);
+				piece.requested.clear();
+				piece.received.clear();
+				piece.sources.clear();
+				piece.digest = newDigest(index, piece.numberOfBlocks);
+				piece.owner = peer;
+			}
+			BlockRequest request = nextBlock(index, piece);
+			if (request != null) {
+				return request;
+			}
+		}
+		int index = piecePicker.pick(peerPieces, startedPieces,
+				completedPieces.cardinality());
+		if (index < 0) {
+			return isEndgame() ? nextEndgameBlock(peerPieces, pending, peer)
+					: null;
+		}
+		PartialPiece piece = newPartialPiece(index);
+		if (onParole) {
+			piece.owner = peer;
+		}
+		partialPieces.put(index, piece);
+		startedPieces.set(index);
+		return nextBlock(index, piece);
+	}
+
+	/*
+	 * Returns the number of bytes in the received blocks of a piece, which
+	 * are counted in downloadedBytes once they are stored.
+	 */
+	private static long receivedBytes(PartialPiece piece) {
+		long bytes = 0;
+		for (int block = piece.received.nextSetBit(0); block >= 0; block = piece.received
+				.nextSetBit(block + 1)) {
+			bytes += Math.min(BLOCK_SIZE, piece.length - block * BLOCK_SIZE);
+		}
+		return bytes;
+	}
+
+	private PartialPiece newPartialPiece(int index) {
+		PartialPiece piece = new PartialPiece(getPieceLength(index));
+		piece.digest = newDigest(index, piece.numberOfBlocks);
+		return piece;
+	}
+
+	private PieceDigest newDigest(int index, int numberOfBlocks) {
+		return new PieceDigest(index, numberOfBlocks,
+				torrentFile.piece_hashes);
+	}
+
+	/*
+	 * Pieces owned by a peer on parole are off limits to everyone else. A
+	 * peer on parole may only take over a piece nobody is downloading.
+	 */
+	private static boolean mayRequest(PartialPiece piece,
+			InetSocketAddress peer, boolean onParole) {
+		if (piece.owner != null) {
+			return piece.owner.equals(peer);
+		}
+		return !onParole || isIdle(piece)
+				&& piece.received.cardinality() < piece.numberOfBlocks;
+	}
+
+	private BlockRequest nextBlock(int index, PartialPiece piece) {
+		int block = piece.requested.nextClearBit(0);
+		if (block >= piece.numberOfBlocks) {
+			return null;
+		}
+		piece.requested.set(block);
+		piece.requests[block]++;
+		return newRequest(index, piece, block);
+	}
+
+	private BlockRequest newRequest(int index, PartialPiece piece, int block) {
+		int begin = block * BLOCK_SIZE;
+		return new BlockRequest(index, begin,
+				Math.min(BLOCK_SIZE, piece.length - begin));
+	}
+
+	/**
+	 * Returns true when every block we still need has been requested from
+	 * some peer.
+	 */
+	public synchronized boolean isEndgame() {
+		if (startedPieces.cardinality() < numberOfPieces) {
+			return false;
+		}
+		for (PartialPiece piece : partialPieces.values()) {
+			if (piece.requested.nextClearBit(0) < piece.numberOfBlocks) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Picks the outstanding block with the fewest requests that this peer
+	 * has not been asked for yet.
+	 */
+	private BlockRequest nextEndgameBlock(BitSet peerPieces,
+			Set<BlockRequest> pending, InetSocketAddress peer) {
+		BlockRequest best = null;
+		int bestRequests = MAX_ENDGAME_REQUESTS;
+		boolean onParole = parole.contains(peer);
+		for (Map.Entry<Integer, PartialPiece> entry : partialPieces
+				.entrySet()) {
+			int index = entry.getKey();
+			PartialPiece piece = entry.getValue();
+			if (!peerPieces.get(index) || piece.owner != null
+					|| onParole) {
+				continue;
+			}
+			for (int block = piece.received.nextClearBit(0); block < piece.numberOfBlocks; block = piece.received
+					.nextClearBit(block + 1)) {
+				if (piece.requests[block] >= bestRequests) {
+					continue;
+				}
+				BlockRequest request = newRequest(index, piece, block);
+				if (!pending.contains(request)) {
+					best = request;
+					bestRequests = piece.requests[block];
+				}
+			}
+		}
+		if (best != null) {
+			partialPieces.get(best.index).requests[best.begin / BLOCK_SIZE]++;
+		}
+		return best;
+	}
+
+	/**
+	 * Returns true if the block has already been received, so any duplicate
+	 * request for it can be cancelled.
+	 */
+	public synchronized boolean isReceived(BlockRequest request) {
+		if (completedPieces.get(request.index)) {
+			return true;
+		}
+		PartialPiece piece = partialPieces.get(request.index);
+		return piece != null && piece.received.get(request.begin / BLOCK_SIZE);
+	}
+
+	/**
+	 * Gives back a block that was requested but will never arrive, for
+	 * example because the peer choked us or disconnected.
+	 */
+	public synchronized void releaseRequest(BlockRequest request) {
+		PartialPiece piece = partialPieces.get(request.index);
+		if (piece != null) {
+			int block = request.begin / BLOCK_SIZE;
+			if (piece.requests[block] > 0) {
+				piece.requests[block]--;
+			}
+			if (piece.requests[block] == 0 && !piece.received.get(block)) {
+				piece.requested.clear(block);
+			}
+			if (piece.owner != null && isIdle(piece)) {
+				piece.owner = null; // the owner went away, let others finish it
+			}
+		}
+	}
+
+	private static boolean isIdle(PartialPiece piece) {
+		for (int block = piece.received.nextClearBit(0); block < piece.numberOfBlocks; block = piece.received
+				.nextClearBit(block + 1)) {
+			if (piece.requests[block] > 0) {
+				return false;
+			}
+		}
+		return piece.writing == 0;
+	}
+
+	/**
+	 * Writes a block received in a PIECE message to storage.
+	 *
+	 * @param source
+	 *            the peer that sent the block.
+	 * @return true if the block completed its piece.
+	 * @throws IOException
+	 *             if the block could not be written; it is then requested
+	 *             again later.
+	 */
+	public boolean blockReceived(int index, int begin, ByteBuffer block,
+			InetSocketAddress source) throws IOException {
+		if (!claimBlock(index, begin, block.remaining(), source)) {
+			return false;
+		}
+		ByteBuffer data = block.duplicate();
+		boolean written = false;
+		try {
+			storage.write(getOffset(index, begin), block);
+			written = true;
+		} finally {
+			if (!written) {
+				blockFailed(index, begin);
+			}
+		}
+		return blockStored(index, begin, data);
+	}
+
+	/**
+	 * Returns the offset of a block in the torrent's data.
+	 */
+	public long getOffset(int index, int begin) {
+		return (long) index * torrentFile.piece_length + begin;
+	}
+
+	/**
+	 * Reserves a block that is about to be written to storage, so a duplicate
+	 * from another peer is dropped. Every successful claim must be followed
+	 * by {@link #blockStored(int, int, ByteBuffer)} or
+	 * {@link #blockFailed(int, int)}.
+	 *
+	 * @param source
+	 *            the peer sending the block.
+	 * @return false if the block is not wanted (already received, never
+	 *         requested or malformed).
+	 */
+	public synchronized boolean claimBlock(int index, int begin, int length,
+			InetSocketAddress source) {
+		PartialPiece piece = partialPieces.get(index);
+		if (piece == null || begin < 0 || begin >= piece.length
+				|| begin % BLOCK_SIZE != 0
+				|| length != Math.min(BLOCK_SIZE, piece.length - begin)
+				|| piece.received.get(begin / BLOCK_SIZE)) {
+			return false;
+		}
+		piece.received.set(begin / BLOCK_SIZE);
+		piece.writing++;
+		piece.sources.add(source);
+		return true;
+	}
+
+	/**
+	 * Gives back a claimed block that could not be written.
+	 */
+	public synchronized void blockFailed(int index, int begin) {
+		PartialPiece piece = partialPieces.get(index);
+		piece.writing--;
+		piece.received.clear(begin / BLOCK_SIZE);
+		piece.requested.clear(begin / BLOCK_SIZE);
+	}
+
+	/**
+	 * Records that a claimed block is now in storage and adds it to the hash
+	 * of its piece.
+	 *
+	 * @param block
+	 *            the block's bytes, which are copied before this returns.
+	 * @return true if the block completed its piece.
+	 */
+	public boolean blockStored(int index, int begin, ByteBuffer block) {
+		PieceDigest digest;
+		boolean last;
+		synchronized (this) {
+			PartialPiece piece = partialPieces.get(index);
+			piece.writing--;
+			downloadedBytes += block.remaining();
+			digest = piece.digest;
+			last = piece.writing == 0
+					&& piece.received.cardinality() == piece.numberOfBlocks;
+		}
+		verifier.hashBlock(digest, begin / BLOCK_SIZE, block,
+				newCallback(digest));
+		return last;
+	}
+
+	private PieceVerifier.Callback newCallback(final PieceDigest digest) {
+		return new PieceVerifier.Callback() {
+			public void verified(int index, boolean valid) {
+				pieceVerified(index, digest, valid);
+			}
+		};
+	}
+
+	private synchronized void pieceVerified(int index, PieceDigest digest,
+			boolean valid) {
+		PartialPiece piece = partialPieces.get(index);
+		if (piece == null || piece.digest != digest) {
+			return; // the piece was started over in the meantime
+		}
+		partialPieces.remove(index);
+		InetSocketAddress soleSource = piece.sources.size() == 1
+				? piece.sources.iterator().next() : null;
+		if (valid) {
+			if (soleSource != null) {
+				parole.remove(soleSource);
+			}
+			completedPieces.set(index);
+			System.out.println("Piece " + index + " completed ("
+					+ completedPieces.cardinality() + "/" + numberOfPieces
+					+ ")");
+			for (Listener listener : listeners) {
+				listener.pieceCompleted(this, index);
+			}
+			if (isComplete()) {
+				notifyAll();
+			}
+			return;
+		}
+		System.err.println("Piece " + index
+				+ " failed the hash check, downloading it again");
+		downloadedBytes -= receivedBytes(piece);
+		if (soleSource != null) {
+			Integer failures = hashFailures.get(soleSource);
+			hashFailures.put(soleSource, failures == null ? 1 : failures + 1);
+		} else {
+			parole.addAll(piece.sources);
+		}
+		partialPieces.put(index, newPartialPiece(index));
+	}
+
+	/**
+	 * Returns the progress to save in a resume file: the completed pieces and
+	 * the blocks of unfinished pieces that are in storage.
+	 */
+	public synchronized ResumeFile.State getResumeState() {
+		Map<Integer, BitSet> partial = new TreeMap<Integer, BitSet>();
+		for (Map.Entry<Integer, PartialPiece> entry : partialPieces
+				.entrySet()) {
+			PartialPiece piece = entry.getValue();
+			// skip pieces with blocks that are still being written
+			if (piece.writing == 0 && !piece.received.isEmpty()) {
+				partial.put(entry.getKey(), (BitSet) piece.received.clone());
+			}
+		}
+		return new ResumeFile.State((BitSet) completedPieces.clone(),
+				partial);
+	}
+
+	/**
+	 * Continues from a state loaded from a resume file. Must be called before
+	 * any peer is contacted. The stored blocks of unfinished pieces are read
+	 * back and hashed again, so the pieces can be finished by new blocks.
+	 */
+	public void restore(ResumeFile.State state) throws IOException {
+		Map<Integer, PartialPiece> restored = new TreeMap<Integer, PartialPiece>();
+		synchronized (this) {
+			BitSet completed = state.completedPieces;
+			for (int index = completed.nextSetBit(0); index >= 0
+					&& index < numberOfPieces; index = completed
+							.nextSetBit(index + 1)) {
+				pieceRestored(index);
+			}
+			for (Map.Entry<Integer, BitSet> entry : state.partialPieces
+					.entrySet()) {
+				int index = entry.getKey();
+				if (startedPieces.get(index)) {
+					continue;
+				}
+				PartialPiece piece = newPartialPiece(index);
+				piece.received.or(entry.getValue());
+				piece.received.clear(piece.numberOfBlocks, Integer.MAX_VALUE);
+				piece.requested.or(piece.received);
+				for (int block = piece.received.nextSetBit(0); block >= 0; block = piece.received
+						.nextSetBit(block + 1)) {
+					downloadedBytes += newRequest(index, piece, block).length;
+				}
+				partialPieces.put(index, piece);
+				startedPieces.set(index);
+				restored.put(index, piece);
+			}
+		}
+		for (Map.Entry<Integer, PartialPiece> entry : restored.entrySet()) {
+			int index = entry.getKey();
+			PartialPiece piece = entry.getValue();
+			for (int block = piece.received.nextSetBit(0); block >= 0; block = piece.received
+					.nextSetBit(block + 1)) {
+				BlockRequest request = newRequest(index, piece, block);
+				ByteBuffer data = ByteBuffer.allocate(request.length);
+				storage.read(getOffset(index, request.begin), data);
+				data.flip();
+				verifier.hashBlock(piece.digest, block, data,
+						newCallback(piece.digest));
+			}
+		}
+	}
+
+	/**
+	 * Checks every piece in storage against its hash and marks the ones that
+	 * match as complete. Used when there is no resume file to trust. Must be
+	 * called before any peer is contacted.
+	 *
+	 * @param progress
+	 *            told how far the check got; may be null.
+	 * @return the number of pieces found complete.
+	 */
+	public int recheck(PieceVerifier.Progress progress)
+			throws IOException, InterruptedException {
+		verifier.recheck(storage, torrentFile, new PieceVerifier.Callback() {
+			public void verified(int index, boolean valid) {
+				if (valid) {
+					pieceRestored(index);
+				}
+			}
+		}, progress);
+		synchronized (this) {
+			return completedPieces.cardinality();
+		}
+	}
+
+	private synchronized void pieceRestored(int index) {
+		completedPieces.set(index);
+		startedPieces.set(index);
+		downloadedBytes += getPieceLength(index);
+	}
+
+	/**
+	 * Returns true if <code>peer</code> sent too many pieces that failed the
+	 * hash check; such peers should be disconnected and not contacted again.
+	 */
+	public synchronized boolean isBanned(InetSocketAddress peer) {
+		Integer failures = hashFailures.get(peer);
+		return failures != null && failures >= MAX_HASH_FAILURES;
+	}
+
+	/**
+	 * Returns true if a peer having <code>peerPieces</code> has at least one
+	 * piece we still need.
+	 */
+	public synchronized boolean isInteresting(BitSet peerPieces) {
+		for (int index = peerPieces.nextSetBit(0); index >= 0
+				&& index < numberOfPieces; index = peerPieces
+						.nextSetBit(index + 1)) {
+			if (!completedPieces.get(index)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public synchronized boolean isComplete() {
+		return completedPieces.cardinality() == numberOfPieces;
+	}
+
+	public synchronized boolean hasPiece(int index) {
+		return completedPieces.get(index);
+	}
+
+	/**
+	 * Returns a copy of the set of pieces that passed their hash check, for
+	 * a BITFIELD message.
+	 */
+	public synchronized BitSet getCompletedPieces() {
+		return (BitSet) completedPieces.clone();
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public synchronized long getDownloadedBytes() {
+		return downloadedBytes;
+	}
+
+	/**
+	 * Records that a block of <code>length</code> bytes was sent to a peer.
+	 */
+	public synchronized void blockSent(int length) {
+		uploadedBytes += length;
+	}
+
+	public synchronized long getUploadedBytes() {
+		return uploadedBytes;
+	}
+
+	public synchronized long getLeftBytes() {
+		return torrentFile.file_length - downloadedBytes;
+	}
+
+	/**
+	 * Blocks until every piece has been received or the timeout expires.
+	 *
+	 * @return true if the download is complete.
+	 */
+	public synchronized boolean awaitCompletion(long timeoutMillis)
+			throws InterruptedException {
+		if (!isComplete()) {
+			wait(timeoutMillis);
+		}
+		return isComplete();
+	}
+}
@@ -0,0 +1,161 @@
+package com.bittorrentclient.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Chooses which piece to download next. The picker counts how many connected
+ * peers have each piece (from their BITFIELD and HAVE messages) and hands out
+ * the rarest piece first, so that pieces few peers have are fetched before
+ * those peers leave and every connection does not fight over the same early
+ * pieces. Until the first {@link #RANDOM_FIRST_PIECES} pieces are complete it
+ * picks at random instead, which gets us something to trade quickly.
+ *
+ * Pieces are kept in one array sorted by availability and split into
+ * buckets, one per availability count. Moving a piece to the neighbouring
+ * bucket is a single swap, so an update costs O(1) no matter how many pieces
+ * the torrent has. The picker is not thread-safe; the {@link PieceManager}
+ * that owns it synchronizes access.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class PiecePicker {
+
+	public static final int RANDOM_FIRST_PIECES = 4;
+
+	private final int numberOfPieces;
+
+	// number of peers that have each piece
+	private final int[] availability;
+
+	// piece indices sorted by availability
+	private final int[] pieces;
+
+	// piece index -> position in pieces
+	private final int[] positions;
+
+	// availability -> position of the first piece with that availability;
+	// the bucket for availability c is [bucketStart[c], bucketStart[c + 1])
+	private int[] bucketStart;
+
+	private final Random random = new Random();
+
+	public PiecePicker(int numberOfPieces) {
+		super();
+		this.numberOfPieces = numberOfPieces;
+		this.availability = new int[numberOfPieces];
+		this.pieces = new int[numberOfPieces];
+		this.positions = new int[numberOfPieces];
+		this.bucketStart = new int[8];
+		Arrays.fill(bucketStart, numberOfPieces);
+		bucketStart[0] = 0;
+
+		// Start from a random order so that peers break ties differently.
+		for (int i = 0; i < numberOfPieces; i++) {
+			pieces[i] = i;
+		}
+		for (int i = numberOfPieces - 1; i > 0; i--) {
+			swap(i, random.nextInt(i + 1));
+		}
+	}
+
+	/**
+	 * Counts one more peer having the piece at <code>index</code>.
+	 */
+	public void increment(int index) {
+		if (index < 0 || index >= numberOfPieces) {
+			return;
+		}
+		int count = availability[index];
+		if (count + 2 >= bucketStart.length) {
+			int oldLength = bucketStart.length;
+			bucketStart = Arrays.copyOf(bucketStart, oldLength * 2);
+			Arrays.fill(bucketStart, oldLength, bucketStart.length,
+					numberOfPieces);
+		}
+		int last = bucketStart[count + 1] - 1;
+		swap(positions[index], last);
+		bucketStart[count + 1]--;
+		availability[index]++;
+	}
+
+	/**
+	 * Counts one peer fewer having the piece at <code>index</code>.
+	 */
+	public void decrement(int index) {
+		if (index < 0 || index >= numberOfPieces
+				|| availability[index] == 0) {
+			return;
+		}
+		int count = availability[index];
+		int first = bucketStart[count];
+		swap(positions[index], first);
+		bucketStart[count]++;
+		availability[index]--;
+	}
+
+	public void incrementAll(BitSet peerPieces) {
+		for (int i = peerPieces.nextSetBit(0); i >= 0; i = peerPieces
+				.nextSetBit(i + 1)) {
+			increment(i);
+		}
+	}
+
+	public void decrementAll(BitSet peerPieces) {
+		for (int i = peerPieces.nextSetBit(0); i >= 0; i = peerPieces
+				.nextSetBit(i + 1)) {
+			decrement(i);
+		}
+	}
+
+	public int getAvailability(int index) {
+		return availability[index];
+	}
+
+	/**
+	 * Picks a piece the peer has and that is not in <code>skip</code>.
+	 *
+	 * @param peerPieces
+	 *            the pieces the peer has.
+	 * @param skip
+	 *            pieces that are already complete or being downloaded.
+	 * @param completedPieces
+	 *            how many pieces we have, to decide between random and
+	 *            rarest first.
+	 * @return the piece index, or -1 if the peer has nothing we can use.
+	 */
+	public int pick(BitSet peerPieces, BitSet skip, int completedPieces) {
+		if (completedPieces < RANDOM_FIRST_PIECES) {
+			return pickRandom(peerPieces, skip);
+		}
+		for (int position = bucketStart[1]; position < numberOfPieces; position++) {
+			int index = pieces[position];
+			if (peerPieces.get(index) && !skip.get(index)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	private int pickRandom(BitSet peerPieces, BitSet skip) {
+		int picked = -1;
+		int candidates = 0;
+		for (int i = peerPieces.nextSetBit(0); i >= 0
+				&& i < numberOfPieces; i = peerPieces.nextSetBit(i + 1)) {
+			if (!skip.get(i) && random.nextInt(++candidates) == 0) {
+				picked = i;
+			}
+		}
+		return picked;
+	}
+
+	private void swap(int a, int b) {
+		int pieceA = pieces[a];
+		int pieceB = pieces[b];
+		pieces[a] = pieceB;
+		pieces[b] = pieceA;
+		positions[pieceB] = a;
+		positions[pieceA] = b;
+	}
+}
@@ -18,14 +18,15 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 */
 //package main;
 
-import java.util.Vector;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A class used for storing the metadata of a .torrent file.
  * @author Robert S. Moore II
  */
 
-@SuppressWarnings("rawtypes")
 public class TorrentFile
 {
 	/**
@@ -49,31 +50,49 @@ public class TorrentFile
 	public String info_hash_as_url;
 		
 	/**
-	 * The number of bytes in the file (for a single-file .torrent).
+	 * The suggested name of the file, or of the directory holding the files of
+	 * a multi-file .torrent.
 	 */
-	public int file_length;
+	public String name;
 	
 	/**
-	 * The size of each piece of the file as broken up by the tracker.
-	 * The last piece of the file may be shorter if the file size (in bytes) is 
-	 * not a multiple of this value.
+	 * True if the .torrent lists its files under 'files' rather than having a
+	 * single 'length'.
 	 */
-	public int piece_length;
-		
+	public boolean multi_file;
+	
+	/**
+	 * The path of each file relative to the torrent's directory, with the
+	 * platform's separator. A single-file .torrent has one entry, its name.
+	 */
+	public List<String> file_paths;
+	
 	/**
-	 * The collection of SHA-1 hash values for each piece of the file stored as byte arrays.
+	 * The number of bytes in each file, in the same order as file_paths. The
+	 * torrent's data is the files concatenated in this order.
 	 */
-	public Vector piece_hash_values_as_binary;
+	public long[] file_lengths;
 	
 	/**
-	 * The collection of SHA-1 hash values for each piece of the file stored as Strings of hexadecimal digits.
+	 * The number of bytes in the file, or the total of all files for a
+	 * multi-file .torrent. A long, as files over 2 GB are common.
 	 */
-	public Vector piece_hash_values_as_hex;
+	public long file_length;
 	
 	/**
-	 * The collection of SHA-1 hash values for each piece of the file stored as Strings of HTTP-escaped characters.
+	 * The size of each piece of the file as broken up by the tracker.
+	 * The last piece of the file may be shorter if the file size (in bytes) is 
+	 * not a multiple of this value. Pieces are held in memory while they are
+	 * hashed, so this stays an int; offsets into the file are computed as
+	 * longs.
+	 */
+	public int piece_length;
+		
+	/**
+	 * The SHA-1 hash values for each piece of the file, in one flat table.
+	 * The hex and HTTP-escaped forms are computed on demand.
 	 */
-	public Vector piece_hash_values_as_url;
+	public PieceHashes piece_hashes;
 		
 	/**
 	 * Creates a new TorrentFile object with empty fields.
@@ -83,12 +102,12 @@ public class TorrentFile
 	{
 		super();
 		tracker_url = new String();
-		piece_hash_values_as_binary = new Vector();
-		piece_hash_values_as_url = new Vector();
-		piece_hash_values_as_hex = new Vector();
+		piece_hashes = new PieceHashes(ByteBuffer.allocate(0));
 		info_hash_as_binary = new byte[20];
 		info_hash_as_url = new String();
 		info_hash_as_hex = new String();
+		file_paths = new ArrayList<String>();
+		file_lengths = new long[0];
 		file_length = -1;
 		piece_length = -1;
 	}	
@@ -23,14 +23,15 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 
-import com.bittorrentclient.services.Bencoder;
+import com.bittorrentclient.services.BencodeDictionary;
+import com.bittorrentclient.services.BencodingException;
 
 /**
  * Unencodes a .torrent file and stores its data in a TorrentFile object.
@@ -39,41 +40,15 @@ import com.bittorrentclient.services.Bencoder;
  */
 public class TorrentFileHandler
 {
-	/*
-	 * This class is used because Java passes by value for primitive data types,
-	 * but passes by reference for Objects. Passing this object instead of a
-	 * simple int allows methods to update the value of the index without using
-	 * global variables.
-	 */
-	private class Index
-	{
-		public int index;
-
-		public Index()
-		{
-			super();
-			this.index = 0;
-		}
-	}
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	
-	// Used to determine the next bencoded data type in the file.
-	private final int NULL_TYPE = 0;
-
-	private final int STRING = 1;
-
-	private final int INTEGER = 2;
-
-	private final int LIST = 3;
-
-	private final int DICTIONARY = 4;
-
-	private final int STRUCTURE_END = 5;
+	// Keys of the entries in the 'files' list of a multi-file .torrent.
+	private static final ByteBuffer LENGTH_KEY = ByteBuffer.wrap("length".getBytes(UTF_8));
+	
+	private static final ByteBuffer PATH_KEY = ByteBuffer.wrap("path".getBytes(UTF_8));
 
 	// Stores the unencoded data.
 	private TorrentFile torrent_file;
-	
-	//Unbencodes data
-	private Bencoder bencoder;
 
 	/**
 	 * Constructs a new TorrentFileHandler object
@@ -83,19 +58,29 @@ public class TorrentFileHandler
 	{
 		super();
 		this.torrent_file = new TorrentFile();
-		this.setBencoder(new Bencoder());
 	}
 
 	public TorrentFile openTorrentFile(String file_name)
 	{
 		byte[] file_data = getBytesFromFile(file_name);
-		HashMap<String, Object> file_data_map;
-		Index index = new Index();
+		if(file_data == null)
+		{
+			return null;
+		}
 
-		file_data_map = parseDictionary(file_data, index);
-		
-		if(!storeDataInTorrent(file_data_map))
+		// Only the values that are read are decoded, and the info hash is
+		// computed over the info dictionary's bytes in place.
+		try
+		{
+			if(!storeDataInTorrent(new BencodeDictionary(ByteBuffer.wrap(file_data))))
+			{
+				return null;
+			}
+		}
+		catch (BencodingException e)
 		{
+			System.err.println("Error: [TorrentFileHandler.java] The file \"" + file_name
+					+ "\" is not a valid .torrent file: " + e.getMessage());
 			return null;
 		}
 		
@@ -136,11 +121,14 @@ public class TorrentFileHandler
 			// http://javaalmanac.com/egs/java.io/File2ByteArray.html
 			file_size_long = file.length();
 
-			// Avoid overflow in the file length
+			// Avoid overflow in the file length. This is the .torrent file
+			// itself, not the data it describes, which may be any size.
 			if (file_size_long > Integer.MAX_VALUE)
 			{
 				System.err.println("Error: [TorrentFileHandler.java] The file \"" + file_name
 						+ "\" is too large to be read by this class.");
+				file_stream.close();
+				return null;
 			}
 
 			// Initialize the byte array for the file's data
@@ -189,400 +177,149 @@ public class TorrentFileHandler
 		return file_bytes;
 	}
 
-	/**
-	 * Reads the byte at <code>data[index.index]</code> and returns an integer
-	 * based on the value.
-	 * 
-	 * @param data
-	 *            Contains bencoded data.
-	 * @param index
-	 *            A valid index into data that points to the beginning of a
-	 *            bencoded String, Integer, List or Dictionary.
-	 * @return An <code>int</code> based on the value of the byte at
-	 *         <code>data[index.index]</code>.
-	 */
-	private int getEncodedType(byte[] data, Index index)
+	private boolean storeDataInTorrent(BencodeDictionary torrent_data) throws BencodingException
 	{
-		// The value to be returned
-		int return_value = NULL_TYPE;
-
-		// Set return_value according to the byte at data[index.index]
-		switch ((char) data[index.index])
+		BencodeDictionary info = torrent_data.getDictionary("info");
+		if(info == null)
 		{
-			case '0':
-			case '1':
-			case '2':
-			case '3':
-			case '4':
-			case '5':
-			case '6':
-			case '7':
-			case '8':
-			case '9':
-				return_value = STRING;
-				break;
-			case 'i':
-				return_value = INTEGER;
-				break;
-			case 'l':
-				return_value = LIST;
-				break;
-			case 'd':
-				return_value = DICTIONARY;
-				break;
-			case 'e':
-				return_value = STRUCTURE_END;
-				break;
-			default:
-				System.err
-						.println("Error: [TorrentFileHandler.java] The byte at position "
-								+ index.index
-								+ " in the .torrent file is not the beginning of a bencoded data type.");
-				break;
-		}
-
-		return return_value;
-	}
-
-	/**
-	 * Parses a bencoded String located at <code>data[index.index]</code> and
-	 * returns it as a String object. After being called,
-	 * <code>index.index</code> points to the byte after the end of the String
-	 * (the next data structure).
-	 * 
-	 * @param data
-	 *            Contains bencoded data.
-	 * @param index
-	 *            A valid index into <code>data</code> that points to the
-	 *            beginning of a bencoded String.
-	 * @return A String representing the bencoded String at
-	 *         <code>data[index.index]</code>.
-	 */
-	private String parseString(byte[] data, Index index)
-	{
-		String return_string = null;
-		int temp_index = index.index;
-		int power_of_ten = 1;
-		int length_of_string = 0;
-		boolean first_digit = false;
-		StringBuffer temp_string = new StringBuffer();
-
-		// Determine the length of the integer representing the String's length.
-		while (data[temp_index] != (byte) ':')
-		{
-			if (first_digit)
-			{
-				power_of_ten *= 10;
-			}
-			first_digit = true;
-			temp_index++;
+			System.err.println("Error: [TorrentFileHandler.java] Could not retrieve the info dictionary.");
+			return false;
 		}
+		torrent_file.info_hash_as_binary = generateSHA1Hash(info.getEncoded());
+		torrent_file.info_hash_as_url = byteArrayToURLString(torrent_file.info_hash_as_binary);
+		torrent_file.info_hash_as_hex = byteArrayToByteString(torrent_file.info_hash_as_binary);
 
-		// Determine the length of the string.
-		while (data[index.index] != (byte) ':')
+		if(!getPieceHashes(info.getBytes("pieces")))
 		{
-			length_of_string += ((data[index.index] - 48) * power_of_ten);
-			power_of_ten /= 10;
-			index.index++;
+			return false;
 		}
-
-		// Skip the ':'
-		index.index++;
-
-		// Extract the string.
-		while ((length_of_string > 0) && (index.index <= data.length))
+		
+		torrent_file.tracker_url = torrent_data.getString("announce");
+		if(torrent_file.tracker_url == null)
 		{
-			temp_string.append((char) data[index.index]);
-
-			length_of_string--;
-			index.index++;
+			System.err.println("Error: [TorrentFileHandler.java] Could not retrieve the tracker URL.");
+			return false;
 		}
-
-		return_string = temp_string.toString();
 		
-		return return_string;
-	}
-
-	/**
-	 * Parses a bencoded Integer located at <code>data[index.index]</code> and
-	 * returns it as an Integer object. After being called,
-	 * <code>index.index</code> points to the byte after the end of the
-	 * Integer (the next data structure).
-	 * 
-	 * @param data
-	 *            Contains bencoded data.
-	 * @param index
-	 *            A valid index into <code>data</code> that points to the
-	 *            beginning of a bencoded Integer.
-	 * @return An Integer representing the bencoded Integer at
-	 *         <code>data[index.index]</code>.
-	 */
-	private Integer parseInteger(byte[] data, Index index)
-	{
-		Integer return_integer;
-		int temp_value = 0;
-		int power_of_ten = 1;
-		boolean first_digit = false;
-		boolean is_negative = false;
-
-		// Skip the 'i'
-		index.index++;
-		
-		if(data[index.index] == (byte)'-')
+		torrent_file.name = info.getString("name");
+		if(info.containsKey("files"))
 		{
-			is_negative = true;
-			index.index++;
+			if(!getFiles(info.getList("files")))
+			{
+				return false;
+			}
 		}
-		int temp_index = index.index;
-
-		// Determine the length of the integer representing the String's length.
-		while (data[temp_index] != (byte) 'e')
+		else
 		{
-			if (first_digit)
+			Long file_length = info.getLong("length");
+			if(file_length == null || file_length < 0)
 			{
-				power_of_ten *= 10;
+				System.err.println("Error: [TorrentFileHandler.java] Could not retrieve the file length.");
+				return false;
 			}
-			first_digit = true;
-			temp_index++;
+			torrent_file.file_length = file_length.longValue();
+			torrent_file.file_paths.add(torrent_file.name == null ? "" : torrent_file.name);
+			torrent_file.file_lengths = new long[] { torrent_file.file_length };
 		}
-
-		// Determine the length of the string.
-		while (data[index.index] != (byte) 'e')
+		
+		Long piece_length = info.getLong("piece length");
+		if(piece_length == null || piece_length <= 0 || piece_length > Integer.MAX_VALUE)
 		{
-			temp_value += ((data[index.index] - 48) * power_of_ten);
-			power_of_ten /= 10;
-			index.index++;
+			System.err.println("Error: [TorrentFileHandler.java] Could not retrieve the piece length.");
+			return false;
 		}
+		torrent_file.piece_length = piece_length.intValue();
 
-		// Skip the 'e'
-		index.index++;
-
-		if(is_negative)
-		{
-			return_integer = new Integer(-temp_value);
-		}
-		else
+		// Every piece index and offset is derived from these two lengths, so
+		// they have to agree with the number of hashes.
+		long number_of_pieces = (torrent_file.file_length + torrent_file.piece_length - 1)
+				/ torrent_file.piece_length;
+		if(number_of_pieces != torrent_file.piece_hashes.size())
 		{
-			return_integer = new Integer(temp_value);
+			System.err.println("Error: [TorrentFileHandler.java] " + torrent_file.file_length
+					+ " bytes of data make " + number_of_pieces + " pieces, but there are "
+					+ torrent_file.piece_hashes.size() + " piece hashes.");
+			return false;
 		}
 		
-		return return_integer;
+		return true;
+		
 	}
-
-	/**
-	 * Parses a bencoded List located <code>data[index.index]</code> and
-	 * returns it as a List object. After being called, <code>index.index</code>
-	 * points to the byte after the end of the List (the next data structure).
-	 * 
-	 * @param data
-	 *            Contains bencoded data.
-	 * @param index
-	 *            A valid index into <code>data</code> that points to the
-	 *            beginning of a bencoded List.
-	 * @return A List representing the bencoded List at
-	 *         <code>data[index.index]</code>.
+	
+	/*
+	 * Reads the 'files' list of a multi-file .torrent. The paths end up on the
+	 * local file system, so every part of them must be a plain name that
+	 * cannot climb out of the torrent's directory.
 	 */
-	private Vector<Serializable> parseList(byte[] data, Index index)
+	private boolean getFiles(List<Object> files)
 	{
-		Vector<Serializable> return_list = new Vector<Serializable>();
-
-		// Skip the 'l'
-		index.index++;
-
-		int next_data_type = getEncodedType(data, index);
-
-		while ((next_data_type != STRUCTURE_END)
-				&& (next_data_type != NULL_TYPE) && (index.index < data.length))
+		if(files == null || files.isEmpty() || !isPlainName(torrent_file.name))
 		{
-			switch(next_data_type)
-			{
-				case INTEGER:
-					return_list.add(parseInteger(data, index));
-					break;
-				case STRING:
-					return_list.add(parseString(data, index));
-					break;
-				case LIST:
-					return_list.add(parseList(data, index));
-					break;
-				case DICTIONARY:
-					return_list.add(parseDictionary(data, index));
-					break;
-				default:
-					System.err.println("Error: [TorrentFileHandler.java] The object at position " + index.index
-							+ " is not a valid bencoded data type.");
-					return null;
-			}
-			next_data_type = getEncodedType(data, index);
+			System.err.println("Error: [TorrentFileHandler.java] Could not retrieve the name and files of the torrent.");
+			return false;
 		}
-
-		//Skip the 'e'
-		index.index++;
 		
-		return return_list;
-	}
-
-	/**
-	 * Parses a bencoded Dictionary located <code>data[index.index]</code> and
-	 * returns it as a Map object. After being called, <code>index.index</code>
-	 * points to the byte after the end of the Dictionary (the next data
-	 * structure).
-	 * 
-	 * @param data
-	 *            Contains bencoded data.
-	 * @param index
-	 *            A valid index into <code>data</code> that points to the
-	 *            beginning of a bencoded Dictionary.
-	 * @return A Map representing the bencoded Dictionary at
-	 *         <code>data[index.index]</code>.
-	 */
-	private HashMap<String, Object> parseDictionary(byte[] data, Index index)
-	{
-		HashMap<String, Object> returned_map = new HashMap<String, Object>(10);
-		String key;
-		Object value;
-
-		// Skip the 'd'
-		index.index++;
-
-		int next_data_type = getEncodedType(data, index);
-
-		// As long as there isn't an error or the end of our dictionary, keep
-		// parsing the entries.
-		while ((next_data_type != NULL_TYPE)
-				&& (next_data_type != STRUCTURE_END)
-				&& (index.index < data.length))
+		long[] lengths = new long[files.size()];
+		long total = 0;
+		
+		for(int i = 0; i < lengths.length; i++)
 		{
-			// The key is ALWAYS a string.
-			if (next_data_type != STRING)
+			Object entry = files.get(i);
+			Object length = entry instanceof Map ? ((Map<?, ?>)entry).get(LENGTH_KEY) : null;
+			Object path = entry instanceof Map ? ((Map<?, ?>)entry).get(PATH_KEY) : null;
+			if(!(length instanceof Long) || (Long)length < 0 || !(path instanceof List) || ((List<?>)path).isEmpty())
 			{
-				System.err
-						.println("Error: [TorrentFileHandler.java] The bencoded object beginning at index "
-								+ index.index
-								+ " is not a String, but must be according to the BitTorrent definition.");
+				System.err.println("Error: [TorrentFileHandler.java] Could not retrieve the length and path of file " + i + ".");
+				return false;
 			}
-
-			key = parseString(data, index);
-
-			// Now get the data type of the value
-			next_data_type = getEncodedType(data, index);
-
-			switch (next_data_type)
+			
+			StringBuilder file_path = new StringBuilder();
+			for(Object component : (List<?>)path)
 			{
-				case INTEGER:
-					value = parseInteger(data, index);
-					break;
-				case STRING:
-					value = parseString(data, index);
-					break;
-				case LIST:
-					value = parseList(data, index);
-					break;
-				case DICTIONARY:
-					if(key.equalsIgnoreCase("info"))
-					{
-						int old_index = index.index;
-						value = parseDictionary(data, index);
-						byte[] info = new byte[index.index-old_index];
-					
-						for(int i = 0; i < info.length; i++)
-						{
-							info[i] = data[old_index + i];
-						}
-						torrent_file.info_hash_as_binary = generateSHA1Hash(info);
-						torrent_file.info_hash_as_url = byteArrayToURLString(torrent_file.info_hash_as_binary);
-						torrent_file.info_hash_as_hex = byteArrayToByteString(torrent_file.info_hash_as_binary);
-					}
-					else
-					{
-						value = parseDictionary(data, index);
-					}
-					break;
-				default:
-					System.err.println("Error: [TorrentFileHandler.java] The value of the key \"" + key
-							+ "\" is not a valid bencoded data type.");
-					return null;
+				String part = component instanceof ByteBuffer ? UTF_8.decode(((ByteBuffer)component).duplicate()).toString() : null;
+				if(!isPlainName(part))
+				{
+					System.err.println("Error: [TorrentFileHandler.java] The path of file " + i + " is not a valid relative path.");
+					return false;
+				}
+				if(file_path.length() > 0)
+				{
+					file_path.append(File.separatorChar);
+				}
+				file_path.append(part);
 			}
-
-			returned_map.put(key, value);
-			//System.out.println("[" + key + "/" + value.toString() + "]");
 			
-			next_data_type = getEncodedType(data, index);
+			lengths[i] = (Long)length;
+			total += lengths[i];
+			if(total < 0)
+			{
+				System.err.println("Error: [TorrentFileHandler.java] The files of the torrent are too large.");
+				return false;
+			}
+			torrent_file.file_paths.add(file_path.toString());
 		}
 		
-		//Skip the 'e'
-		index.index++;
-		
-		return returned_map;
+		torrent_file.multi_file = true;
+		torrent_file.file_lengths = lengths;
+		torrent_file.file_length = total;
+		return true;
 	}
 	
-	private boolean storeDataInTorrent(Map<String, Object> torrent_data_map)
+	private static boolean isPlainName(String part)
 	{
-		Map<?, ?> info_map = (Map<?, ?>)torrent_data_map.get("info");
-		if(info_map == null)
-		{
-			System.err.println("Error: [TorrentFileHandler.java] Could not retrieve the info dictionary.");
-			return false;
-		}
-		if(!getPieceHashes((String)info_map.get("pieces")))
-		{
-			return false;
-		}
-		
-		torrent_file.tracker_url = (String)torrent_data_map.get("announce");
-		if(torrent_file.tracker_url == null)
-		{
-			System.err.println("Error: [TorrentFileHandler.java] Could not retrieve the tracker URL.");
-			return false;
-		}
-		
-		torrent_file.file_length = ((Integer)info_map.get("length")).intValue();
-		if(torrent_file.file_length < 0)
-		{
-			System.err.println("Error: [TorrentFileHandler.java] Could not retrieve the file length.");
-			return false;
-		}
-		
-		torrent_file.piece_length = ((Integer)info_map.get("piece length")).intValue();
-		if(torrent_file.piece_length < 0)
-		{
-			System.err.println("Error: [TorrentFileHandler.java] Could not retrieve the piece length.");
-			return false;
-		}
-		
-		return true;
-		
+		return part != null && part.length() > 0 && !part.equals(".") && !part.equals("..")
+				&& part.indexOf('/') < 0 && part.indexOf('\\') < 0 && part.indexOf('\0') < 0;
 	}
 	
-	@SuppressWarnings("unchecked")
-	private boolean getPieceHashes(String hash_string)
+	private boolean getPieceHashes(ByteBuffer hashes)
 	{
-		if(hash_string.length() % 20 != 0)
+		if(hashes == null || hashes.remaining() % PieceHashes.HASH_LENGTH != 0)
 		{
 			System.err.println("Error: [TorrentFileHandler.java] The SHA-1 hash for the file's pieces is not the correct length.");
 			return false;
 		}
 		
-		byte[] binary_data = new byte[hash_string.length()];
-		byte[] individual_hash;
-		int number_of_pieces = binary_data.length / 20;
-		
-		for(int i = 0; i < binary_data.length; i++)
-		{
-			binary_data[i] = (byte)hash_string.charAt(i);
-		}
-		
-		for(int i = 0; i < number_of_pieces; i++)
-		{
-			individual_hash = new byte[20];
-			for(int j = 0; j < 20; j++)
-			{
-				individual_hash[j] = binary_data[(20*i)+j];
-			}
-			torrent_file.piece_hash_values_as_binary.add(individual_hash);
-			torrent_file.piece_hash_values_as_hex.add(byteArrayToByteString(individual_hash));
-			torrent_file.piece_hash_values_as_url.add(byteArrayToURLString(individual_hash));
-		}
+		torrent_file.piece_hashes = new PieceHashes(hashes);
 		
 		return true;
 	}
@@ -682,15 +419,14 @@ public class TorrentFileHandler
         return rslt;
 	}
 
-	private byte[] generateSHA1Hash(byte[] bytes)
+	private byte[] generateSHA1Hash(ByteBuffer bytes)
 	{
 		try
 		{
-			byte[] hash = new byte[20];
 			MessageDigest sha = MessageDigest.getInstance("SHA-1");
-			hash = sha.digest(bytes);
+			sha.update(bytes);
 
-			return hash;
+			return sha.digest();
 		}
 		catch (NoSuchAlgorithmException e)
 		{
@@ -700,12 +436,4 @@ public class TorrentFileHandler
 		}
 		return null;
 	}
-
-	public Bencoder getBencoder() {
-		return bencoder;
-	}
-
-	public void setBencoder(Bencoder bencoder) {
-		this.bencoder = bencoder;
-	}
 }
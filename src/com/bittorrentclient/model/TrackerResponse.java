@@ -0,0 +1,48 @@
+package com.bittorrentclient.model;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A tracker's answer to an announce. Fields the tracker left out keep their
+ * defaults: -1 for numbers and null for strings.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class TrackerResponse {
+
+	/**
+	 * Set instead of everything else when the tracker refused the announce.
+	 */
+	public String failure_reason;
+
+	public String warning_message;
+
+	/**
+	 * Seconds to wait before the next regular announce.
+	 */
+	public int interval = -1;
+
+	/**
+	 * Seconds to wait at least before announcing again at all.
+	 */
+	public int min_interval = -1;
+
+	/**
+	 * To be sent back with every later announce, if set.
+	 */
+	public String tracker_id;
+
+	/**
+	 * The number of seeders and of leechers in the swarm.
+	 */
+	public long complete = -1;
+	public long incomplete = -1;
+
+	public final List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+
+	public boolean isFailure() {
+		return failure_reason != null;
+	}
+}
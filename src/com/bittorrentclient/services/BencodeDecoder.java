@@ -0,0 +1,232 @@
+package com.bittorrentclient.services;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decodes bencoded data held in a {@link ByteBuffer}, which may be a heap
+ * buffer, a direct buffer or a memory-mapped file. The decoder walks the
+ * buffer with absolute reads and an int cursor and copies nothing: byte
+ * strings are returned as slices that share the source's memory, integers as
+ * {@code Long}, lists as {@code List} and dictionaries as {@code Map}s keyed
+ * by byte string slices, sorted with a {@link DictionaryComparator}.
+ *
+ * While decoding, the exact byte range of the top level <code>info</code>
+ * dictionary is recorded, so the info hash can be computed over the original
+ * bytes with {@link #getInfoBytes()}.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class BencodeDecoder {
+
+	// Nesting deeper than this is rejected rather than risking the stack.
+	private static final int MAX_DEPTH = 512;
+
+	private static final ByteBuffer INFO = ByteBuffer
+			.wrap(new byte[] { 'i', 'n', 'f', 'o' });
+
+	private static final DictionaryComparator KEY_ORDER = new DictionaryComparator();
+
+	private final ByteBuffer data;
+
+	private int position;
+
+	private int depth;
+
+	private int infoStart = -1;
+
+	private int infoEnd = -1;
+
+	/**
+	 * Creates a decoder for the bytes between the position and the limit of
+	 * <code>data</code>. The buffer's position and limit are not changed.
+	 */
+	public BencodeDecoder(ByteBuffer data) {
+		super();
+		this.data = data;
+		this.position = data.position();
+	}
+
+	/**
+	 * Decodes the single bencoded value in <code>data</code>.
+	 */
+	public static Object decode(ByteBuffer data) throws BencodingException {
+		return new BencodeDecoder(data).decodeNext();
+	}
+
+	/**
+	 * Decodes the value at the cursor and moves the cursor past it.
+	 */
+	public Object decodeNext() throws BencodingException {
+		switch (peek()) {
+		case 'd':
+			return decodeDictionary();
+		case 'l':
+			return decodeList();
+		case 'i':
+			return Long.valueOf(decodeInteger());
+		default:
+			return decodeString();
+		}
+	}
+
+	/**
+	 * Moves the cursor past the value at the cursor without decoding it.
+	 * Nothing is allocated, so large values are skipped at the cost of
+	 * scanning their structure.
+	 */
+	public void skipNext() throws BencodingException {
+		switch (peek()) {
+		case 'd':
+		case 'l':
+			enter();
+			position++; // skip the 'd' or 'l'
+			while (peek() != 'e') {
+				skipNext(); // dictionary keys are skipped like any string
+			}
+			position++; // skip the 'e'
+			depth--;
+			break;
+		case 'i':
+			decodeInteger();
+			break;
+		default:
+			int length = decodeLength(); // moves the cursor to the first byte
+			position += length;
+		}
+	}
+
+	/**
+	 * Returns the position of the cursor in the buffer.
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns the bencoded <code>info</code> dictionary of a metainfo file as
+	 * a slice of the source, or null if no top level dictionary decoded so
+	 * far had an <code>info</code> key.
+	 */
+	public ByteBuffer getInfoBytes() {
+		return infoStart < 0 ? null : slice(infoStart, infoEnd - infoStart);
+	}
+
+	private byte peek() throws BencodingException {
+		if (position >= data.limit()) {
+			throw new BencodingException(
+					"Unexpected end of data at position " + position + ".");
+		}
+		return data.get(position);
+	}
+
+	private long decodeInteger() throws BencodingException {
+		position++; // skip the 'i'
+		boolean negative = peek() == '-';
+		if (negative) {
+			position++;
+		}
+		int start = position;
+		long value = 0;
+		byte b;
+		while ((b = peek()) != 'e') {
+			if (b < '0' || b > '9' || value > (Long.MAX_VALUE - 9) / 10) {
+				throw new BencodingException("Invalid integer at position "
+						+ position + ".");
+			}
+			value = value * 10 + (b - '0');
+			position++;
+		}
+		if (position == start) {
+			throw new BencodingException("Empty integer at position "
+					+ position + ".");
+		}
+		position++; // skip the 'e'
+		return negative ? -value : value;
+	}
+
+	private ByteBuffer decodeString() throws BencodingException {
+		int length = decodeLength();
+		ByteBuffer string = slice(position, length);
+		position += length;
+		return string;
+	}
+
+	/*
+	 * Reads the length prefix of a string and leaves the cursor on its first
+	 * byte.
+	 */
+	private int decodeLength() throws BencodingException {
+		int length = 0;
+		int start = position;
+		byte b;
+		while ((b = peek()) != ':') {
+			if (b < '0' || b > '9' || length > (Integer.MAX_VALUE - 9) / 10) {
+				throw new BencodingException("Invalid string length at position "
+						+ position + ".");
+			}
+			length = length * 10 + (b - '0');
+			position++;
+		}
+		if (position == start) {
+			throw new BencodingException("Expected a string at position "
+					+ position + ".");
+		}
+		position++; // skip the ':'
+		if (length > data.limit() - position) {
+			throw new BencodingException("String of " + length
+					+ " bytes at position " + position
+					+ " runs past the end of the data.");
+		}
+		return length;
+	}
+
+	private List<Object> decodeList() throws BencodingException {
+		enter();
+		position++; // skip the 'l'
+		List<Object> list = new ArrayList<Object>();
+		while (peek() != 'e') {
+			list.add(decodeNext());
+		}
+		position++; // skip the 'e'
+		depth--;
+		return list;
+	}
+
+	private Map<ByteBuffer, Object> decodeDictionary()
+			throws BencodingException {
+		enter();
+		position++; // skip the 'd'
+		Map<ByteBuffer, Object> dictionary = new TreeMap<ByteBuffer, Object>(
+				KEY_ORDER);
+		while (peek() != 'e') {
+			ByteBuffer key = decodeString();
+			int start = position;
+			dictionary.put(key, decodeNext());
+			if (depth == 1 && key.equals(INFO)) {
+				infoStart = start;
+				infoEnd = position;
+			}
+		}
+		position++; // skip the 'e'
+		depth--;
+		return dictionary;
+	}
+
+	private void enter() throws BencodingException {
+		if (++depth > MAX_DEPTH) {
+			throw new BencodingException("Nesting too deep at position "
+					+ position + ".");
+		}
+	}
+
+	private ByteBuffer slice(int start, int length) {
+		ByteBuffer slice = data.duplicate();
+		slice.limit(start + length);
+		slice.position(start);
+		return slice.slice();
+	}
+}
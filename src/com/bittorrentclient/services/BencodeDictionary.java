@@ -0,0 +1,245 @@
+package com.bittorrentclient.services;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-only view of a bencoded dictionary that decodes values only when
+ * they are asked for. Creating the view makes a single pass over the
+ * dictionary that records where each key's value starts and ends; the values
+ * themselves are skipped, not decoded. Reading the announce URL or the length
+ * of a .torrent file therefore never builds the piece hash string list, and
+ * the encoded bytes of any value, such as the <code>info</code> dictionary
+ * for the info hash, are available as a slice without re-encoding.
+ *
+ * Like {@link BencodeDecoder}, the view copies nothing: byte strings are
+ * slices of the source buffer, which must not be changed while the view is in
+ * use.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class BencodeDictionary {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer data;
+
+	private final List<ByteBuffer> keys = new ArrayList<ByteBuffer>();
+
+	// start and end of each key's value in data, two ints per key
+	private int[] ranges = new int[16];
+
+	// values decoded so far, and lazy views of nested dictionaries, by key
+	// number
+	private Object[] values;
+
+	private BencodeDictionary[] views;
+
+	private final int end;
+
+	/**
+	 * Indexes the dictionary that starts at the position of <code>data</code>.
+	 * The buffer's position and limit are not changed.
+	 *
+	 * @throws BencodingException
+	 *             if there is no valid dictionary at the position.
+	 */
+	public BencodeDictionary(ByteBuffer data) throws BencodingException {
+		super();
+		this.data = data;
+		int start = data.position();
+		if (start >= data.limit() || data.get(start) != 'd') {
+			throw new BencodingException("Expected a dictionary at position "
+					+ start + ".");
+		}
+		ByteBuffer body = data.duplicate();
+		body.position(start + 1);
+		BencodeDecoder decoder = new BencodeDecoder(body);
+		while (true) {
+			int position = decoder.getPosition();
+			if (position >= data.limit()) {
+				throw new BencodingException(
+						"Unexpected end of data at position " + position + ".");
+			}
+			if (data.get(position) == 'e') {
+				end = position + 1;
+				break;
+			}
+			Object key = decoder.decodeNext();
+			if (!(key instanceof ByteBuffer)) {
+				throw new BencodingException("Dictionary key at position "
+						+ position + " is not a string.");
+			}
+			int valueStart = decoder.getPosition();
+			decoder.skipNext();
+			int n = keys.size();
+			if (ranges.length < 2 * n + 2) {
+				int[] larger = new int[ranges.length * 2];
+				System.arraycopy(ranges, 0, larger, 0, ranges.length);
+				ranges = larger;
+			}
+			keys.add((ByteBuffer) key);
+			ranges[2 * n] = valueStart;
+			ranges[2 * n + 1] = decoder.getPosition();
+		}
+		values = new Object[keys.size()];
+		views = new BencodeDictionary[keys.size()];
+	}
+
+	/**
+	 * Returns the number of keys in the dictionary.
+	 */
+	public int size() {
+		return keys.size();
+	}
+
+	/**
+	 * Returns the keys in the order they appear in the data.
+	 */
+	public List<ByteBuffer> keys() {
+		List<ByteBuffer> copies = new ArrayList<ByteBuffer>(keys.size());
+		for (ByteBuffer key : keys) {
+			copies.add(key.duplicate());
+		}
+		return copies;
+	}
+
+	public boolean containsKey(String key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Returns the encoded bytes of the whole dictionary as a slice of the
+	 * source.
+	 */
+	public ByteBuffer getEncoded() {
+		return slice(data.position(), end);
+	}
+
+	/**
+	 * Returns the encoded bytes of the value of <code>key</code> as a slice of
+	 * the source, or null if there is no such key. The info hash of a
+	 * metainfo file is the SHA-1 of <code>getEncoded("info")</code>.
+	 */
+	public ByteBuffer getEncoded(String key) {
+		int i = find(key);
+		return i < 0 ? null : slice(ranges[2 * i], ranges[2 * i + 1]);
+	}
+
+	/**
+	 * Decodes the value of <code>key</code> with {@link BencodeDecoder}, or
+	 * returns null if there is no such key. Nested dictionaries are decoded
+	 * completely; use {@link #getDictionary(String)} to keep them lazy.
+	 */
+	public Object get(String key) throws BencodingException {
+		int i = find(key);
+		if (i < 0) {
+			return null;
+		}
+		if (values[i] == null) {
+			values[i] = BencodeDecoder.decode(slice(ranges[2 * i],
+					ranges[2 * i + 1]));
+		}
+		return values[i];
+	}
+
+	/**
+	 * Returns a lazy view of the dictionary stored under <code>key</code>, or
+	 * null if there is no such key.
+	 */
+	public BencodeDictionary getDictionary(String key)
+			throws BencodingException {
+		int i = find(key);
+		if (i < 0) {
+			return null;
+		}
+		if (views[i] == null) {
+			views[i] = new BencodeDictionary(slice(ranges[2 * i],
+					ranges[2 * i + 1]));
+		}
+		return views[i];
+	}
+
+	/**
+	 * Returns the byte string stored under <code>key</code>, or null if there
+	 * is no such key.
+	 */
+	public ByteBuffer getBytes(String key) throws BencodingException {
+		Object value = get(key);
+		if (value != null && !(value instanceof ByteBuffer)) {
+			throw new BencodingException("The value of " + key
+					+ " is not a string.");
+		}
+		return value == null ? null : ((ByteBuffer) value).duplicate();
+	}
+
+	/**
+	 * Returns the byte string stored under <code>key</code> decoded as UTF-8,
+	 * or null if there is no such key.
+	 */
+	public String getString(String key) throws BencodingException {
+		ByteBuffer value = getBytes(key);
+		return value == null ? null : UTF_8.decode(value).toString();
+	}
+
+	/**
+	 * Returns the integer stored under <code>key</code>, or null if there is
+	 * no such key.
+	 */
+	public Long getLong(String key) throws BencodingException {
+		Object value = get(key);
+		if (value != null && !(value instanceof Long)) {
+			throw new BencodingException("The value of " + key
+					+ " is not an integer.");
+		}
+		return (Long) value;
+	}
+
+	/**
+	 * Returns the list stored under <code>key</code>, or null if there is no
+	 * such key.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Object> getList(String key) throws BencodingException {
+		Object value = get(key);
+		if (value != null && !(value instanceof List)) {
+			throw new BencodingException("The value of " + key
+					+ " is not a list.");
+		}
+		return (List<Object>) value;
+	}
+
+	/*
+	 * Returns the number of the key equal to the UTF-8 encoding of key, or -1.
+	 * Dictionaries in .torrent files have a handful of keys, so a scan that
+	 * compares lengths first is as fast as a search and also works for files
+	 * whose keys are not sorted.
+	 */
+	private int find(String key) {
+		byte[] bytes = key.getBytes(UTF_8);
+		for (int i = 0; i < keys.size(); i++) {
+			ByteBuffer candidate = keys.get(i);
+			if (candidate.remaining() != bytes.length) {
+				continue;
+			}
+			int j = 0;
+			while (j < bytes.length
+					&& candidate.get(candidate.position() + j) == bytes[j]) {
+				j++;
+			}
+			if (j == bytes.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private ByteBuffer slice(int start, int end) {
+		ByteBuffer slice = data.duplicate();
+		slice.limit(end);
+		slice.position(start);
+		return slice.slice();
+	}
+}
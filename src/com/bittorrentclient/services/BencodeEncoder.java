@@ -0,0 +1,223 @@
+package com.bittorrentclient.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Bencodes the values produced by {@link BencodeDecoder}: byte strings as
+ * {@code ByteBuffer}s, integers as {@code Long}s, lists and dictionaries. For
+ * convenience, {@code byte[]} and {@code String} (as UTF-8) are accepted as
+ * byte strings, the other integral {@code Number}s as integers and
+ * {@link BencodeDictionary} views, which are copied as they were encoded.
+ *
+ * Everything is written into one growing array, so encoding a value costs a
+ * single pass and no intermediate arrays. Dictionary keys are written in the
+ * order of their raw bytes, as the specification requires; maps sorted with a
+ * {@link DictionaryComparator}, like the decoder's, are written without
+ * sorting them again.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class BencodeEncoder {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final DictionaryComparator KEY_ORDER = new DictionaryComparator();
+
+	// the decimal digits of the largest long, plus the sign
+	private final byte[] digits = new byte[20];
+
+	private byte[] buffer;
+
+	private int size;
+
+	public BencodeEncoder() {
+		this(256);
+	}
+
+	public BencodeEncoder(int initialCapacity) {
+		super();
+		this.buffer = new byte[Math.max(16, initialCapacity)];
+	}
+
+	/**
+	 * Bencodes <code>value</code>.
+	 *
+	 * @return a heap buffer holding exactly the encoded bytes.
+	 */
+	public static ByteBuffer encode(Object value) throws BencodingException {
+		return new BencodeEncoder().write(value).toByteBuffer();
+	}
+
+	/**
+	 * Appends the encoding of <code>value</code>.
+	 *
+	 * @throws BencodingException
+	 *             if <code>value</code>, or anything in it, has no bencoded
+	 *             form.
+	 */
+	public BencodeEncoder write(Object value) throws BencodingException {
+		if (value instanceof ByteBuffer) {
+			writeString((ByteBuffer) value);
+		} else if (value instanceof byte[]) {
+			writeString((byte[]) value);
+		} else if (value instanceof String) {
+			writeString((String) value);
+		} else if (value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte) {
+			writeInteger(((Number) value).longValue());
+		} else if (value instanceof List) {
+			writeList((List<?>) value);
+		} else if (value instanceof Map) {
+			writeDictionary((Map<?, ?>) value);
+		} else if (value instanceof BencodeDictionary) {
+			writeRaw(((BencodeDictionary) value).getEncoded());
+		} else {
+			throw new BencodingException("Cannot bencode "
+					+ (value == null ? "null" : value.getClass().getName())
+					+ ".");
+		}
+		return this;
+	}
+
+	public BencodeEncoder writeInteger(long value) {
+		ensureCapacity(22);
+		buffer[size++] = 'i';
+		size = writeDecimal(value, size);
+		buffer[size++] = 'e';
+		return this;
+	}
+
+	/**
+	 * Appends the remaining bytes of <code>value</code> as a byte string. The
+	 * buffer's position is not changed.
+	 */
+	public BencodeEncoder writeString(ByteBuffer value) {
+		int length = value.remaining();
+		ensureCapacity(11 + length);
+		size = writeDecimal(length, size);
+		buffer[size++] = ':';
+		value.duplicate().get(buffer, size, length);
+		size += length;
+		return this;
+	}
+
+	public BencodeEncoder writeString(byte[] value) {
+		return writeString(ByteBuffer.wrap(value));
+	}
+
+	public BencodeEncoder writeString(String value) {
+		return writeString(value.getBytes(UTF_8));
+	}
+
+	private void writeList(List<?> list) throws BencodingException {
+		ensureCapacity(1);
+		buffer[size++] = 'l';
+		for (Object element : list) {
+			write(element);
+		}
+		ensureCapacity(1);
+		buffer[size++] = 'e';
+	}
+
+	private void writeDictionary(Map<?, ?> dictionary)
+			throws BencodingException {
+		Map<?, ?> sorted = dictionary;
+		if (!(dictionary instanceof SortedMap && ((SortedMap<?, ?>) dictionary)
+				.comparator() instanceof DictionaryComparator)) {
+			TreeMap<ByteBuffer, Object> keyed = new TreeMap<ByteBuffer, Object>(
+					KEY_ORDER);
+			for (Map.Entry<?, ?> entry : dictionary.entrySet()) {
+				keyed.put(toKey(entry.getKey()), entry.getValue());
+			}
+			sorted = keyed;
+		}
+		ensureCapacity(1);
+		buffer[size++] = 'd';
+		for (Map.Entry<?, ?> entry : sorted.entrySet()) {
+			writeString((ByteBuffer) entry.getKey());
+			write(entry.getValue());
+		}
+		ensureCapacity(1);
+		buffer[size++] = 'e';
+	}
+
+	private static ByteBuffer toKey(Object key) throws BencodingException {
+		if (key instanceof ByteBuffer) {
+			return (ByteBuffer) key;
+		} else if (key instanceof byte[]) {
+			return ByteBuffer.wrap((byte[]) key);
+		} else if (key instanceof String) {
+			return ByteBuffer.wrap(((String) key).getBytes(UTF_8));
+		}
+		throw new BencodingException("Dictionary key " + key
+				+ " is not a string.");
+	}
+
+	private void writeRaw(ByteBuffer encoded) {
+		int length = encoded.remaining();
+		ensureCapacity(length);
+		encoded.duplicate().get(buffer, size, length);
+		size += length;
+	}
+
+	/*
+	 * Writes value in decimal at buffer[offset] and returns the offset after
+	 * the last digit. The caller makes room for 20 bytes.
+	 */
+	private int writeDecimal(long value, int offset) {
+		int n = digits.length;
+		long rest = value;
+		do {
+			// negative remainders keep Long.MIN_VALUE from overflowing
+			digits[--n] = (byte) ('0' + Math.abs(rest % 10));
+			rest /= 10;
+		} while (rest != 0);
+		if (value < 0) {
+			digits[--n] = '-';
+		}
+		int length = digits.length - n;
+		System.arraycopy(digits, n, buffer, offset, length);
+		return offset + length;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (buffer.length - size < needed) {
+			byte[] larger = new byte[Math.max(buffer.length * 2, size + needed)];
+			System.arraycopy(buffer, 0, larger, 0, size);
+			buffer = larger;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the bytes written so far. The buffer shares the encoder's array
+	 * until the encoder grows it, so read it before writing more.
+	 */
+	public ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(buffer, 0, size).slice();
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, 0, size);
+	}
+
+	/**
+	 * Discards what was written, keeping the array for the next value.
+	 */
+	public void reset() {
+		size = 0;
+	}
+}
@@ -0,0 +1,312 @@
+package com.bittorrentclient.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads bencoded data from a stream one event at a time, without building the
+ * decoded document. Each call to {@link #next()} reports the next piece of
+ * structure: the start or end of a dictionary or list, a dictionary key, an
+ * integer or a byte string. Values a caller is not interested in can be
+ * passed over with {@link #skipValue()}, which never holds a skipped string
+ * in memory, so the memory used is bounded by the largest string actually
+ * read.
+ *
+ * Byte strings and keys are returned as views of the reader's buffer and are
+ * only valid until the next call.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class BencodeReader implements Closeable {
+
+	public enum Event {
+		DICTIONARY_START, DICTIONARY_END, LIST_START, LIST_END, KEY, INTEGER, STRING
+	}
+
+	// Longer strings are rejected rather than buffered.
+	public static final int DEFAULT_MAX_STRING_LENGTH = 1 << 26;
+
+	private static final int MAX_DEPTH = 512;
+
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+
+	private final ReadableByteChannel channel;
+
+	private final int maxStringLength;
+
+	private ByteBuffer buffer;
+
+	// true for each open dictionary, false for each open list
+	private final boolean[] dictionaries = new boolean[MAX_DEPTH];
+
+	private int depth;
+
+	// set when the next token of the innermost dictionary is a key
+	private boolean expectingKey;
+
+	private boolean finished;
+
+	private long integer;
+
+	private ByteBuffer string;
+
+	public BencodeReader(ReadableByteChannel channel, int maxStringLength) {
+		super();
+		this.channel = channel;
+		this.maxStringLength = maxStringLength;
+		this.buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		this.buffer.flip();
+	}
+
+	public BencodeReader(ReadableByteChannel channel) {
+		this(channel, DEFAULT_MAX_STRING_LENGTH);
+	}
+
+	public BencodeReader(InputStream in) {
+		this(Channels.newChannel(in));
+	}
+
+	/**
+	 * Reads the next event.
+	 *
+	 * @return the event, or null once the top level value has been read
+	 *         completely.
+	 * @throws BencodingException
+	 *             if the data is not valid bencoding.
+	 */
+	public Event next() throws IOException, BencodingException {
+		if (finished) {
+			return null;
+		}
+		byte b = peek();
+		if (expectingKey) {
+			if (b == 'e') {
+				buffer.get();
+				return close(Event.DICTIONARY_END);
+			}
+			string = readString(false);
+			expectingKey = false;
+			return Event.KEY;
+		}
+		switch (b) {
+		case 'd':
+		case 'l':
+			if (depth == MAX_DEPTH) {
+				throw new BencodingException("Nesting too deep.");
+			}
+			buffer.get();
+			dictionaries[depth++] = b == 'd';
+			expectingKey = b == 'd';
+			return b == 'd' ? Event.DICTIONARY_START : Event.LIST_START;
+		case 'e':
+			if (depth == 0 || dictionaries[depth - 1]) {
+				throw new BencodingException("Unexpected 'e'.");
+			}
+			buffer.get();
+			return close(Event.LIST_END);
+		case 'i':
+			integer = readInteger();
+			return valueRead(Event.INTEGER);
+		default:
+			string = readString(false);
+			return valueRead(Event.STRING);
+		}
+	}
+
+	/**
+	 * Returns the value of the last {@link Event#INTEGER}.
+	 */
+	public long getInteger() {
+		return integer;
+	}
+
+	/**
+	 * Returns the bytes of the last {@link Event#STRING} or
+	 * {@link Event#KEY}. The buffer is only valid until the next call.
+	 */
+	public ByteBuffer getString() {
+		return string;
+	}
+
+	/**
+	 * Returns true if the last key read equals <code>key</code>.
+	 */
+	public boolean isKey(String key) {
+		if (string == null || string.remaining() != key.length()) {
+			return false;
+		}
+		for (int i = 0; i < key.length(); i++) {
+			if (string.get(string.position() + i) != (byte) key.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Passes over the next value, including everything nested in it. Call
+	 * after a {@link Event#KEY} to ignore its value, or inside a list to
+	 * ignore an element.
+	 */
+	public void skipValue() throws IOException, BencodingException {
+		int start = depth;
+		do {
+			byte b = peek();
+			if (expectingKey) {
+				if (b == 'e') {
+					buffer.get();
+					close(null);
+				} else {
+					readString(true);
+					expectingKey = false;
+				}
+			} else if (b == 'i') {
+				readInteger();
+				valueRead(null);
+			} else if (b == 'd' || b == 'l' || b == 'e') {
+				next();
+			} else {
+				readString(true);
+				valueRead(null);
+			}
+		} while (depth > start);
+	}
+
+	/**
+	 * Passes over the rest of the innermost open dictionary or list, up to
+	 * and including its end. Call after a {@link Event#DICTIONARY_START} or
+	 * {@link Event#LIST_START} to ignore the whole structure.
+	 */
+	public void skipRest() throws IOException, BencodingException {
+		int start = depth;
+		while (depth >= start && depth > 0) {
+			if (peek() == 'e') {
+				next();
+			} else if (expectingKey) {
+				readString(true);
+				expectingKey = false;
+			} else {
+				skipValue();
+			}
+		}
+	}
+
+	private Event close(Event event) {
+		depth--;
+		return valueRead(event);
+	}
+
+	/*
+	 * Called when a complete value has been read at the current depth.
+	 */
+	private Event valueRead(Event event) {
+		if (depth == 0) {
+			finished = true;
+		} else {
+			expectingKey = dictionaries[depth - 1];
+		}
+		return event;
+	}
+
+	private long readInteger() throws IOException, BencodingException {
+		buffer.get(); // skip the 'i'
+		boolean negative = peek() == '-';
+		if (negative) {
+			buffer.get();
+		}
+		long value = 0;
+		int digits = 0;
+		byte b;
+		while ((b = peek()) != 'e') {
+			if (b < '0' || b > '9' || value > (Long.MAX_VALUE - 9) / 10) {
+				throw new BencodingException("Invalid integer.");
+			}
+			value = value * 10 + (b - '0');
+			buffer.get();
+			digits++;
+		}
+		if (digits == 0) {
+			throw new BencodingException("Empty integer.");
+		}
+		buffer.get(); // skip the 'e'
+		return negative ? -value : value;
+	}
+
+	private ByteBuffer readString(boolean skip)
+			throws IOException, BencodingException {
+		int length = 0;
+		int digits = 0;
+		byte b;
+		while ((b = peek()) != ':') {
+			if (b < '0' || b > '9' || length > (Integer.MAX_VALUE - 9) / 10) {
+				throw new BencodingException("Invalid string length.");
+			}
+			length = length * 10 + (b - '0');
+			buffer.get();
+			digits++;
+		}
+		if (digits == 0) {
+			throw new BencodingException("Expected a string.");
+		}
+		buffer.get(); // skip the ':'
+		if (skip) {
+			while (length > 0) {
+				if (!buffer.hasRemaining()) {
+					fill(1);
+				}
+				int chunk = Math.min(length, buffer.remaining());
+				buffer.position(buffer.position() + chunk);
+				length -= chunk;
+			}
+			return null;
+		}
+		if (length > maxStringLength) {
+			throw new BencodingException("String of " + length
+					+ " bytes is longer than the limit of " + maxStringLength
+					+ ".");
+		}
+		fill(length);
+		ByteBuffer value = buffer.slice();
+		value.limit(length);
+		buffer.position(buffer.position() + length);
+		return value;
+	}
+
+	private byte peek() throws IOException, BencodingException {
+		if (!buffer.hasRemaining()) {
+			fill(1);
+		}
+		return buffer.get(buffer.position());
+	}
+
+	/*
+	 * Makes sure at least n bytes are buffered, growing the buffer if it is
+	 * too small to hold them.
+	 */
+	private void fill(int n) throws IOException, BencodingException {
+		if (buffer.remaining() >= n) {
+			return;
+		}
+		if (buffer.capacity() < n) {
+			ByteBuffer larger = ByteBuffer.allocate(n);
+			larger.put(buffer);
+			buffer = larger;
+		} else {
+			buffer.compact();
+		}
+		while (buffer.position() < n) {
+			if (channel.read(buffer) < 0) {
+				throw new BencodingException("Unexpected end of data.");
+			}
+		}
+		buffer.flip();
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
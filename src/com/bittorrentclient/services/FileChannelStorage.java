@@ -0,0 +1,93 @@
+package com.bittorrentclient.services;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Stores the torrent's data in a single file that is allocated to its full
+ * size up front. Every block is written with a positional
+ * {@link FileChannel#write(ByteBuffer, long)} as soon as it arrives, so no
+ * piece has to be kept in memory and whatever was written survives a crash.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class FileChannelStorage implements PieceStorage {
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	private final long size;
+
+	public FileChannelStorage(File file, long size) throws IOException {
+		super();
+		this.file = new RandomAccessFile(file, "rw");
+		this.size = size;
+		if (this.file.length() != size) {
+			this.file.setLength(size);
+		}
+		this.channel = this.file.getChannel();
+	}
+
+	public void write(long offset, ByteBuffer data) throws IOException {
+		checkRange(offset, data.remaining());
+		while (data.hasRemaining()) {
+			offset += channel.write(data, offset);
+		}
+	}
+
+	public void read(long offset, ByteBuffer data) throws IOException {
+		checkRange(offset, data.remaining());
+		while (data.hasRemaining()) {
+			int read = channel.read(data, offset);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of file at " + offset);
+			}
+			offset += read;
+		}
+	}
+
+	/**
+	 * Positional channel writes have no memory to expose, so this always
+	 * returns null.
+	 */
+	public ByteBuffer map(long offset, int length) {
+		return null;
+	}
+
+	/**
+	 * Uses {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so
+	 * the kernel sends the data from its page cache.
+	 */
+	public long transferTo(long offset, long length, WritableByteChannel target)
+			throws IOException {
+		checkRange(offset, 0);
+		return channel.transferTo(offset, Math.min(length, size - offset),
+				target);
+	}
+
+	private void checkRange(long offset, int length) throws IOException {
+		if (offset < 0 || offset + length > size) {
+			throw new IOException("Region " + offset + "+" + length
+					+ " is outside of the " + size + " byte file.");
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public void flush() throws IOException {
+		channel.force(false);
+	}
+
+	public void close() throws IOException {
+		flush();
+		file.close();
+	}
+}
@@ -0,0 +1,94 @@
+package com.bittorrentclient.services;
+
+/**
+ * Translates offsets in a torrent's data into positions in its files. The
+ * data of a multi-file torrent is its files concatenated in order, so a block
+ * may start in one file and end in another. The mapper keeps the offset at
+ * which each file starts, a prefix sum of the file lengths, and finds the file
+ * holding an offset with a binary search; a block covering several files is
+ * then walked file by file from there. Finding where a block goes therefore
+ * takes O(log files), however many small files the torrent has.
+ *
+ * A typical loop over the segments of <code>length</code> bytes at
+ * <code>offset</code>:
+ *
+ * <pre>
+ * for (int file = mapper.fileAt(offset); length &gt; 0; file++) {
+ * 	long fileOffset = offset - mapper.getStart(file);
+ * 	long chunk = Math.min(length, mapper.getLength(file) - fileOffset);
+ * 	// chunk bytes at fileOffset of file; empty files give 0
+ * 	offset += chunk;
+ * 	length -= chunk;
+ * }
+ * </pre>
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class FileSpanMapper {
+
+	// starts[i] is the offset of the first byte of file i; starts[n] is the
+	// total size
+	private final long[] starts;
+
+	public FileSpanMapper(long[] lengths) {
+		super();
+		this.starts = new long[lengths.length + 1];
+		for (int i = 0; i < lengths.length; i++) {
+			if (lengths[i] < 0) {
+				throw new IllegalArgumentException("File " + i
+						+ " has a negative length.");
+			}
+			starts[i + 1] = starts[i] + lengths[i];
+		}
+	}
+
+	public int getNumberOfFiles() {
+		return starts.length - 1;
+	}
+
+	/**
+	 * Returns the offset in the torrent's data of the first byte of
+	 * <code>file</code>.
+	 */
+	public long getStart(int file) {
+		return starts[file];
+	}
+
+	public long getLength(int file) {
+		return starts[file + 1] - starts[file];
+	}
+
+	/**
+	 * Returns the total number of bytes in all files.
+	 */
+	public long size() {
+		return starts[starts.length - 1];
+	}
+
+	/**
+	 * Returns the file holding the byte at <code>offset</code>. Empty files
+	 * hold no bytes and are never returned.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if <code>offset</code> is not in the torrent's data.
+	 */
+	public int fileAt(long offset) {
+		if (offset < 0 || offset >= size()) {
+			throw new IndexOutOfBoundsException("Offset " + offset
+					+ " is outside of the " + size() + " bytes of data.");
+		}
+		// the last file starting at or before offset; an empty file starts
+		// where the next one does, so it is passed over
+		int low = 0;
+		int high = starts.length - 2;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (starts[middle] <= offset) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+}
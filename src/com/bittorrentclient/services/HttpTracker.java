@@ -0,0 +1,259 @@
+package com.bittorrentclient.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import com.bittorrentclient.model.Announce;
+import com.bittorrentclient.model.TrackerResponse;
+
+/**
+ * Announces to HTTP trackers. The response is streamed into a
+ * {@link BencodeReader} in large reads, so it can be any size and nothing
+ * but the peers is kept; compact peer lists are turned into addresses
+ * straight from the <code>peers</code> string.
+ *
+ * Connections are left open for the next announce: once a response has been
+ * read to its end the stream is closed without disconnecting, which hands
+ * the connection back to the JDK's keep-alive cache, and the next announce
+ * to the same tracker skips the TCP (and TLS) handshake.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class HttpTracker {
+
+	public static final int DEFAULT_TIMEOUT = 15000;
+
+	// Real responses are a few kilobytes; anything near this is not a tracker.
+	private static final int MAX_STRING_LENGTH = 1 << 20;
+
+	private static final int DRAIN_BUFFER_SIZE = 4096;
+
+	static final int IPV4_PEER_LENGTH = 6;
+
+	static final int IPV6_PEER_LENGTH = 18;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int timeout;
+
+	public HttpTracker(int timeout) {
+		super();
+		this.timeout = timeout;
+	}
+
+	public HttpTracker() {
+		this(DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Sends <code>announce</code> to the tracker at <code>announceUrl</code>
+	 * and returns its response, which may be a failure.
+	 *
+	 * @throws IOException
+	 *             if the tracker could not be reached or answered with an
+	 *             HTTP error.
+	 * @throws BencodingException
+	 *             if the response is not a bencoded dictionary.
+	 */
+	public TrackerResponse announce(String announceUrl, Announce announce)
+			throws IOException, BencodingException {
+		URL url = new URL(announceUrl
+				+ (announceUrl.indexOf('?') < 0 ? '?' : '&')
+				+ query(announce));
+		HttpURLConnection connection = (HttpURLConnection) url
+				.openConnection();
+		connection.setConnectTimeout(timeout);
+		connection.setReadTimeout(timeout);
+		connection.setUseCaches(false);
+		int status = connection.getResponseCode();
+		if (status != HttpURLConnection.HTTP_OK) {
+			// the error body must be read too or the connection is dropped
+			InputStream error = connection.getErrorStream();
+			if (error != null) {
+				drain(error);
+				error.close();
+			}
+			throw new IOException("Tracker answered " + status + " "
+					+ connection.getResponseMessage());
+		}
+		InputStream in = connection.getInputStream();
+		try {
+			TrackerResponse response = read(new BencodeReader(
+					Channels.newChannel(in),
+					MAX_STRING_LENGTH));
+			drain(in);
+			return response;
+		} catch (IOException e) {
+			// the stream is in an unknown state, so do not reuse it
+			connection.disconnect();
+			throw e;
+		} catch (BencodingException e) {
+			connection.disconnect();
+			throw e;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String query(Announce announce) {
+		StringBuilder query = new StringBuilder(256);
+		query.append("info_hash=").append(
+				Utils.byteArrayToURLString(announce.info_hash));
+		query.append("&peer_id=").append(
+				Utils.byteArrayToURLString(announce.peer_id));
+		query.append("&port=").append(announce.port);
+		query.append("&uploaded=").append(announce.uploaded);
+		query.append("&downloaded=").append(announce.downloaded);
+		query.append("&left=").append(announce.left);
+		query.append("&compact=1");
+		query.append("&numwant=").append(announce.numwant);
+		if (announce.event != null) {
+			query.append("&event=").append(announce.event);
+		}
+		if (announce.tracker_id != null) {
+			query.append("&trackerid=").append(
+					Utils.byteArrayToURLString(announce.tracker_id
+							.getBytes(UTF8)));
+		}
+		return query.toString();
+	}
+
+	/**
+	 * Reads a tracker response, skipping the keys it does not know.
+	 */
+	static TrackerResponse read(BencodeReader reader) throws IOException,
+			BencodingException {
+		if (reader.next() != BencodeReader.Event.DICTIONARY_START) {
+			throw new BencodingException(
+					"The tracker response is not a dictionary.");
+		}
+		TrackerResponse response = new TrackerResponse();
+		while (reader.next() == BencodeReader.Event.KEY) {
+			if (reader.isKey("peers")) {
+				BencodeReader.Event value = reader.next();
+				if (value == BencodeReader.Event.STRING) {
+					decodeCompactPeers(reader.getString(), IPV4_PEER_LENGTH,
+							response.peers);
+				} else if (value == BencodeReader.Event.LIST_START) {
+					readPeerDictionaries(reader, response.peers);
+				} else if (value != BencodeReader.Event.INTEGER) {
+					reader.skipRest();
+				}
+			} else if (reader.isKey("peers6")) {
+				if (reader.next() == BencodeReader.Event.STRING) {
+					decodeCompactPeers(reader.getString(), IPV6_PEER_LENGTH,
+							response.peers);
+				} else {
+					reader.skipRest();
+				}
+			} else if (reader.isKey("interval")) {
+				response.interval = (int) readInteger(reader);
+			} else if (reader.isKey("min interval")) {
+				response.min_interval = (int) readInteger(reader);
+			} else if (reader.isKey("complete")) {
+				response.complete = readInteger(reader);
+			} else if (reader.isKey("incomplete")) {
+				response.incomplete = readInteger(reader);
+			} else if (reader.isKey("failure reason")) {
+				response.failure_reason = readString(reader);
+			} else if (reader.isKey("warning message")) {
+				response.warning_message = readString(reader);
+			} else if (reader.isKey("tracker id")) {
+				response.tracker_id = readString(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * Adds the peers of a compact peer string: for each, the address in
+	 * network order followed by a two byte port. UDP tracker responses carry
+	 * the same entries.
+	 */
+	static void decodeCompactPeers(ByteBuffer peers, int peerLength,
+			List<InetSocketAddress> addresses) {
+		byte[] address = new byte[peerLength - 2];
+		while (peers.remaining() >= peerLength) {
+			peers.get(address);
+			int port = peers.getShort() & 0xffff;
+			try {
+				addresses.add(new InetSocketAddress(InetAddress
+						.getByAddress(address), port));
+			} catch (IOException e) {
+				// cannot happen for 4 and 16 byte addresses
+			}
+		}
+	}
+
+	/**
+	 * Reads the original peer list, a dictionary per peer, once its
+	 * LIST_START has been read.
+	 */
+	private static void readPeerDictionaries(BencodeReader reader,
+			List<InetSocketAddress> addresses) throws IOException,
+			BencodingException {
+		BencodeReader.Event event;
+		while ((event = reader.next()) == BencodeReader.Event.DICTIONARY_START) {
+			String ip = null;
+			int port = -1;
+			while (reader.next() == BencodeReader.Event.KEY) {
+				if (reader.isKey("ip")) {
+					ip = readString(reader);
+				} else if (reader.isKey("port")) {
+					port = (int) readInteger(reader);
+				} else {
+					reader.skipValue();
+				}
+			}
+			if (ip != null && port > 0 && port <= 0xffff) {
+				addresses.add(new InetSocketAddress(ip, port));
+			}
+		}
+		if (event != BencodeReader.Event.LIST_END) {
+			throw new BencodingException("Malformed peer list.");
+		}
+	}
+
+	private static long readInteger(BencodeReader reader) throws IOException,
+			BencodingException {
+		BencodeReader.Event value = reader.next();
+		if (value == BencodeReader.Event.INTEGER) {
+			return reader.getInteger();
+		}
+		if (value != BencodeReader.Event.STRING) {
+			reader.skipRest();
+		}
+		return -1;
+	}
+
+	private static String readString(BencodeReader reader) throws IOException,
+			BencodingException {
+		BencodeReader.Event value = reader.next();
+		if (value == BencodeReader.Event.STRING) {
+			return UTF8.decode(reader.getString()).toString();
+		}
+		if (value != BencodeReader.Event.INTEGER) {
+			reader.skipRest();
+		}
+		return null;
+	}
+
+	/**
+	 * Reads whatever follows the response, so the connection can be reused.
+	 */
+	private static void drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+		while (in.read(buffer) >= 0) {
+		}
+	}
+}
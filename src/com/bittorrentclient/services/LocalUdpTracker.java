@@ -0,0 +1,237 @@
+package com.bittorrentclient.services;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A UDP tracker (BEP 15) running in the same process, to try the client
+ * against without a real tracker. It hands out connection ids, answers every
+ * announce with the same peers, and can be told to ignore datagrams so that
+ * retransmission is exercised. Run on its own with a port and the peers to
+ * hand out as ip:port.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class LocalUdpTracker {
+
+	private static final long PROTOCOL_ID = 0x41727101980L;
+
+	private static final int ACTION_CONNECT = 0;
+	private static final int ACTION_ANNOUNCE = 1;
+	private static final int ACTION_ERROR = 3;
+
+	private static final String[] EVENTS = { null, "completed", "started",
+			"stopped" };
+
+	private static final int ANNOUNCE_LENGTH = 98;
+
+	private final DatagramChannel channel;
+
+	private final Thread thread;
+
+	private final List<InetSocketAddress> peers;
+
+	private final int interval;
+
+	private final Random random = new Random();
+
+	// connection ids handed out; never expire here
+	private final Set<Long> connectionIds = new HashSet<Long>();
+
+	private int dropped;
+
+	private int connects;
+
+	private int announces;
+
+	private String lastEvent;
+
+	private long lastLeft = -1;
+
+	/**
+	 * Starts answering on <code>port</code> of the loopback address, or on a
+	 * free port if it is 0.
+	 *
+	 * @param peers
+	 *            the peers every announce gets; only IPv4 ones fit in the
+	 *            replies of a tracker on an IPv4 address, so others are left
+	 *            out.
+	 * @param interval
+	 *            the interval to give, in seconds.
+	 */
+	public LocalUdpTracker(int port, List<InetSocketAddress> peers,
+			int interval) throws IOException {
+		super();
+		this.peers = new ArrayList<InetSocketAddress>();
+		for (InetSocketAddress peer : peers) {
+			if (peer.getAddress() instanceof Inet4Address) {
+				this.peers.add(peer);
+			}
+		}
+		this.interval = interval;
+		this.channel = DatagramChannel.open();
+		this.channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				port));
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		}, "local-udp-tracker");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Returns the tracker's udp:// URL.
+	 */
+	public String getAnnounceUrl() throws IOException {
+		InetSocketAddress address = (InetSocketAddress) channel
+				.getLocalAddress();
+		return "udp://" + address.getHostString() + ":" + address.getPort()
+				+ "/announce";
+	}
+
+	/**
+	 * Ignores the next <code>datagrams</code> datagrams received, as if they
+	 * had been lost.
+	 */
+	public synchronized void drop(int datagrams) {
+		dropped = datagrams;
+	}
+
+	/**
+	 * Forgets every connection id handed out, so announces using one are
+	 * refused as they are after a real tracker's ids expire.
+	 */
+	public synchronized void expireConnections() {
+		connectionIds.clear();
+	}
+
+	public synchronized int getConnects() {
+		return connects;
+	}
+
+	public synchronized int getAnnounces() {
+		return announces;
+	}
+
+	/**
+	 * Returns the event of the last announce, or null if it had none.
+	 */
+	public synchronized String getLastEvent() {
+		return lastEvent;
+	}
+
+	public synchronized long getLastLeft() {
+		return lastLeft;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void serve() {
+		ByteBuffer request = ByteBuffer.allocate(2048);
+		while (true) {
+			request.clear();
+			InetSocketAddress client;
+			try {
+				client = (InetSocketAddress) channel.receive(request);
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				continue;
+			}
+			request.flip();
+			ByteBuffer reply = answer(request);
+			if (reply != null) {
+				try {
+					channel.send(reply, client);
+				} catch (IOException e) {
+					// the client retries
+				}
+			}
+		}
+	}
+
+	private synchronized ByteBuffer answer(ByteBuffer request) {
+		if (dropped > 0) {
+			dropped--;
+			return null;
+		}
+		if (request.remaining() < 16) {
+			return null;
+		}
+		long connectionId = request.getLong(0);
+		int action = request.getInt(8);
+		int transactionId = request.getInt(12);
+		if (action == ACTION_CONNECT && connectionId == PROTOCOL_ID) {
+			connects++;
+			long id = random.nextLong();
+			connectionIds.add(id);
+			ByteBuffer reply = ByteBuffer.allocate(16);
+			reply.putInt(ACTION_CONNECT).putInt(transactionId).putLong(id);
+			reply.flip();
+			return reply;
+		}
+		if (action != ACTION_ANNOUNCE || request.remaining() < ANNOUNCE_LENGTH) {
+			return error(transactionId, "Bad request");
+		}
+		if (!connectionIds.contains(connectionId)) {
+			return error(transactionId, "Connection ID mismatch");
+		}
+		announces++;
+		lastLeft = request.getLong(64);
+		int event = request.getInt(80);
+		lastEvent = event >= 0 && event < EVENTS.length ? EVENTS[event] : null;
+		int numwant = request.getInt(92);
+		int count = numwant < 0 ? peers.size() : Math.min(numwant,
+				peers.size());
+		ByteBuffer reply = ByteBuffer.allocate(20 + 6 * count);
+		reply.putInt(ACTION_ANNOUNCE).putInt(transactionId).putInt(interval);
+		// leechers and seeders
+		reply.putInt(count).putInt(0);
+		for (InetSocketAddress peer : peers.subList(0, count)) {
+			reply.put(peer.getAddress().getAddress());
+			reply.putShort((short) peer.getPort());
+		}
+		reply.flip();
+		return reply;
+	}
+
+	private static ByteBuffer error(int transactionId, String message) {
+		byte[] text = message.getBytes(Charset.forName("UTF-8"));
+		ByteBuffer reply = ByteBuffer.allocate(8 + text.length);
+		reply.putInt(ACTION_ERROR).putInt(transactionId).put(text);
+		reply.flip();
+		return reply;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: LocalUdpTracker port [ip:port ...]");
+			System.exit(1);
+		}
+		List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+		for (int i = 1; i < args.length; i++) {
+			peers.add(new InetSocketAddress(Utilities
+					.getIPFromString(args[i]), Utilities
+					.getPortFromString(args[i])));
+		}
+		LocalUdpTracker tracker = new LocalUdpTracker(
+				Integer.parseInt(args[0]), peers, 1800);
+		System.out.println("Tracker listening at " + tracker.getAnnounceUrl());
+		Thread.sleep(Long.MAX_VALUE);
+	}
+}
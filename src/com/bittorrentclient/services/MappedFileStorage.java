@@ -0,0 +1,145 @@
+package com.bittorrentclient.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Stores the torrent's data in a single memory-mapped file. A mapping is
+ * limited to 2 GB, so the file is mapped in windows of {@link #WINDOW_SIZE}
+ * bytes, each mapped the first time it is touched. Blocks that lie inside one
+ * window can be read from the network straight into the mapping through
+ * {@link #map(long, int)}.
+ *
+ * The mappings are released by the garbage collector once the storage is
+ * closed; Java has no way to unmap them explicitly.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class MappedFileStorage implements PieceStorage {
+
+	public static final int WINDOW_SIZE = 1 << 27;
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	private final long size;
+
+	private final MappedByteBuffer[] windows;
+
+	public MappedFileStorage(File file, long size) throws IOException {
+		super();
+		this.file = new RandomAccessFile(file, "rw");
+		this.size = size;
+		if (this.file.length() != size) {
+			this.file.setLength(size);
+		}
+		this.channel = this.file.getChannel();
+		this.windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1)
+				/ WINDOW_SIZE)];
+	}
+
+	/*
+	 * Returns an independent view of the window holding offset, positioned
+	 * at offset, so concurrent callers do not share a position.
+	 */
+	private ByteBuffer window(long offset) throws IOException {
+		int number = (int) (offset / WINDOW_SIZE);
+		MappedByteBuffer window;
+		synchronized (windows) {
+			window = windows[number];
+			if (window == null) {
+				long start = (long) number * WINDOW_SIZE;
+				window = channel.map(FileChannel.MapMode.READ_WRITE, start,
+						Math.min(WINDOW_SIZE, size - start));
+				windows[number] = window;
+			}
+		}
+		ByteBuffer view = window.duplicate();
+		view.position((int) (offset % WINDOW_SIZE));
+		return view;
+	}
+
+	public void write(long offset, ByteBuffer data) throws IOException {
+		checkRange(offset, data.remaining());
+		while (data.hasRemaining()) {
+			ByteBuffer view = window(offset);
+			int chunk = Math.min(view.remaining(), data.remaining());
+			ByteBuffer part = data.duplicate();
+			part.limit(part.position() + chunk);
+			view.put(part);
+			data.position(data.position() + chunk);
+			offset += chunk;
+		}
+	}
+
+	public void read(long offset, ByteBuffer data) throws IOException {
+		checkRange(offset, data.remaining());
+		while (data.hasRemaining()) {
+			ByteBuffer view = window(offset);
+			int chunk = Math.min(view.remaining(), data.remaining());
+			view.limit(view.position() + chunk);
+			data.put(view);
+			offset += chunk;
+		}
+	}
+
+	public ByteBuffer map(long offset, int length) throws IOException {
+		checkRange(offset, length);
+		if (offset / WINDOW_SIZE != (offset + length - 1) / WINDOW_SIZE) {
+			return null; // the region crosses into the next window
+		}
+		ByteBuffer view = window(offset);
+		view.limit(view.position() + length);
+		return view;
+	}
+
+	/**
+	 * Writes straight from the mapping; the data is not copied on the way.
+	 */
+	public long transferTo(long offset, long length, WritableByteChannel target)
+			throws IOException {
+		checkRange(offset, 0);
+		ByteBuffer view = window(offset);
+		view.limit((int) Math.min(view.limit(), view.position() + length));
+		return target.write(view);
+	}
+
+	private void checkRange(long offset, int length) throws IOException {
+		if (offset < 0 || offset + length > size) {
+			throw new IOException("Region " + offset + "+" + length
+					+ " is outside of the " + size + " byte file.");
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public void flush() throws IOException {
+		synchronized (windows) {
+			for (MappedByteBuffer window : windows) {
+				if (window != null) {
+					window.force();
+				}
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		synchronized (windows) {
+			for (int i = 0; i < windows.length; i++) {
+				if (windows[i] != null) {
+					windows[i].force();
+					windows[i] = null;
+				}
+			}
+		}
+		file.close();
+	}
+}
@@ -0,0 +1,303 @@
+package com.bittorrentclient.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the data of a multi-file torrent in its files. Offsets are
+ * translated with a {@link FileSpanMapper}, and a block that crosses file
+ * boundaries is written to or read from each file in turn with positional
+ * channel operations.
+ *
+ * Torrents can have a very large number of small files, so files are only
+ * created when they are first written, and at most
+ * {@link #MAX_OPEN_FILES} channels are kept open; the least recently used one
+ * is closed when another file is needed. Closing a file does not force it to
+ * disk; which files were written is remembered, and {@link #flush()} forces
+ * them whether they are still open or not. Reading a file that does not
+ * exist yet, or past its end, gives zeros.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class MultiFileStorage implements PieceStorage {
+
+	public static final int MAX_OPEN_FILES = 128;
+
+	// the most zeros written for missing data in one transferTo() call
+	private static final int MAX_ZEROS = 16384;
+
+	private static class OpenFile {
+		final RandomAccessFile file;
+
+		final FileChannel channel;
+
+		// threads using the channel right now; it is not closed while > 0
+		int users;
+
+		// set once the file has been extended to its full length
+		boolean allocated;
+
+		OpenFile(RandomAccessFile file) {
+			this.file = file;
+			this.channel = file.getChannel();
+		}
+	}
+
+	private final File[] files;
+
+	private final FileSpanMapper mapper;
+
+	// file number -> open channel, least recently used first
+	private final LinkedHashMap<Integer, OpenFile> open = new LinkedHashMap<Integer, OpenFile>(
+			16, 0.75f, true);
+
+	// file numbers written to since they were last forced to disk
+	private final BitSet dirty = new BitSet();
+
+	public MultiFileStorage(File[] files, long[] lengths) {
+		super();
+		this.files = files;
+		this.mapper = new FileSpanMapper(lengths);
+	}
+
+	/**
+	 * Returns the files holding the data, in order.
+	 */
+	public File[] getFiles() {
+		return files;
+	}
+
+	public void write(long offset, ByteBuffer data) throws IOException {
+		checkRange(offset, data.remaining());
+		if (!data.hasRemaining()) {
+			return;
+		}
+		for (int i = mapper.fileAt(offset); data.hasRemaining(); i++) {
+			long fileOffset = offset - mapper.getStart(i);
+			int chunk = (int) Math.min(data.remaining(), mapper.getLength(i)
+					- fileOffset);
+			if (chunk == 0) {
+				continue;
+			}
+			ByteBuffer part = data.duplicate();
+			part.limit(part.position() + chunk);
+			OpenFile file = acquire(i, true);
+			try {
+				while (part.hasRemaining()) {
+					fileOffset += file.channel.write(part, fileOffset);
+				}
+			} finally {
+				release(file);
+			}
+			data.position(part.position());
+			offset += chunk;
+		}
+	}
+
+	public void read(long offset, ByteBuffer data) throws IOException {
+		checkRange(offset, data.remaining());
+		if (!data.hasRemaining()) {
+			return;
+		}
+		for (int i = mapper.fileAt(offset); data.hasRemaining(); i++) {
+			long fileOffset = offset - mapper.getStart(i);
+			int chunk = (int) Math.min(data.remaining(), mapper.getLength(i)
+					- fileOffset);
+			if (chunk == 0) {
+				continue;
+			}
+			ByteBuffer part = data.duplicate();
+			part.limit(part.position() + chunk);
+			OpenFile file = acquire(i, false);
+			try {
+				while (file != null && part.hasRemaining()) {
+					int read = file.channel.read(part, fileOffset);
+					if (read < 0) {
+						break;
+					}
+					fileOffset += read;
+				}
+			} finally {
+				release(file);
+			}
+			while (part.hasRemaining()) {
+				part.put((byte) 0);
+			}
+			data.position(part.position());
+			offset += chunk;
+		}
+	}
+
+	/**
+	 * Transfers from the file holding <code>offset</code> only; a block that
+	 * continues in the next file takes another call. Missing data is sent as
+	 * zeros, like {@link #read(long, ByteBuffer)} gives.
+	 */
+	public long transferTo(long offset, long length, WritableByteChannel target)
+			throws IOException {
+		checkRange(offset, 0);
+		if (length == 0 || offset == mapper.size()) {
+			return 0;
+		}
+		int i = mapper.fileAt(offset);
+		long fileOffset = offset - mapper.getStart(i);
+		long chunk = Math.min(length, mapper.getLength(i) - fileOffset);
+		OpenFile file = acquire(i, false);
+		try {
+			if (file != null && fileOffset < file.channel.size()) {
+				return file.channel.transferTo(fileOffset,
+						Math.min(chunk, file.channel.size() - fileOffset),
+						target);
+			}
+		} finally {
+			release(file);
+		}
+		ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(chunk,
+				MAX_ZEROS));
+		return target.write(zeros);
+	}
+
+	/**
+	 * A block may span several files, so there is no single region of memory
+	 * to expose; this always returns null.
+	 */
+	public ByteBuffer map(long offset, int length) {
+		return null;
+	}
+
+	/*
+	 * Returns the open channel of file number i, opening it if necessary.
+	 * Unless the file is to be written, a file that does not exist is not
+	 * created and null is returned. Every file returned must be released.
+	 */
+	private synchronized OpenFile acquire(int i, boolean write)
+			throws IOException {
+		OpenFile file = open.get(i);
+		if (file == null) {
+			if (!write && !files[i].exists()) {
+				return null;
+			}
+			File parent = files[i].getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Could not create " + parent);
+			}
+			file = new OpenFile(new RandomAccessFile(files[i], "rw"));
+			open.put(i, file);
+		}
+		if (write && !file.allocated) {
+			if (file.file.length() != mapper.getLength(i)) {
+				file.file.setLength(mapper.getLength(i));
+			}
+			file.allocated = true;
+		}
+		if (write) {
+			dirty.set(i);
+		}
+		file.users++;
+		closeIdleFiles();
+		return file;
+	}
+
+	private synchronized void release(OpenFile file) throws IOException {
+		if (file != null) {
+			file.users--;
+			closeIdleFiles();
+		}
+	}
+
+	/*
+	 * Closes the least recently used channels nobody is using until no more
+	 * than MAX_OPEN_FILES are open. This runs while writes wait for the lock,
+	 * so written files are not forced here; flush() reopens them instead.
+	 */
+	private void closeIdleFiles() throws IOException {
+		Iterator<OpenFile> iterator = open.values().iterator();
+		while (open.size() > MAX_OPEN_FILES && iterator.hasNext()) {
+			OpenFile file = iterator.next();
+			if (file.users == 0) {
+				iterator.remove();
+				file.file.close();
+			}
+		}
+	}
+
+	private void checkRange(long offset, int length) throws IOException {
+		if (offset < 0 || offset + length > mapper.size()) {
+			throw new IOException("Region " + offset + "+" + length
+					+ " is outside of the " + mapper.size()
+					+ " bytes of data.");
+		}
+	}
+
+	public long size() {
+		return mapper.size();
+	}
+
+	/**
+	 * Forces every file written since the last flush to disk. Files that have
+	 * been closed since are reopened to be forced, outside of the lock so that
+	 * reads and writes go on meanwhile.
+	 */
+	public void flush() throws IOException {
+		List<Integer> closed = new ArrayList<Integer>();
+		synchronized (this) {
+			for (Map.Entry<Integer, OpenFile> entry : open.entrySet()) {
+				int i = entry.getKey();
+				OpenFile file = entry.getValue();
+				if (dirty.get(i)) {
+					file.channel.force(false);
+					// a write still in progress may not be covered by the force
+					if (file.users == 0) {
+						dirty.clear(i);
+					}
+				}
+			}
+			for (int i = dirty.nextSetBit(0); i >= 0; i = dirty
+					.nextSetBit(i + 1)) {
+				if (!open.containsKey(i)) {
+					closed.add(i);
+					dirty.clear(i);
+				}
+			}
+		}
+		for (int i : closed) {
+			RandomAccessFile file = new RandomAccessFile(files[i], "rw");
+			try {
+				file.getChannel().force(false);
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes every file. Empty files are never written, so they are created
+	 * here.
+	 */
+	public synchronized void close() throws IOException {
+		flush();
+		for (OpenFile file : open.values()) {
+			file.file.close();
+		}
+		open.clear();
+		for (int i = 0; i < files.length; i++) {
+			if (mapper.getLength(i) == 0 && !files[i].exists()) {
+				File parent = files[i].getParentFile();
+				if (parent != null) {
+					parent.mkdirs();
+				}
+				files[i].createNewFile();
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.bittorrentclient.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of whole pieces read from storage, used to answer peers'
+ * requests. Peers ask for a piece block by block, so on a miss the whole
+ * piece is read ahead in one large read and the following blocks come from
+ * memory. The least recently used pieces are dropped to stay within the
+ * capacity.
+ *
+ * A piece is only read into the cache the second time it is asked for
+ * within a while; the first request is sent straight from storage. A single
+ * block requested once, as in a scan of the whole torrent by a peer that is
+ * almost done, does not push out pieces that are being read repeatedly. The
+ * pieces asked for once are remembered, without their data, in a list of
+ * {@link #MAX_GHOSTS} entries.
+ *
+ * One cache can be shared by several downloads; pieces are told apart by
+ * the storage they come from.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class PieceCache {
+
+	public static final long DEFAULT_CAPACITY = 64L << 20;
+
+	private static final int MAX_GHOSTS = 4096;
+
+	private static final class Key {
+		final PieceStorage storage;
+		final int index;
+
+		Key(PieceStorage storage, int index) {
+			this.storage = storage;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return storage == other.storage && index == other.index;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(storage) + index;
+		}
+	}
+
+	private final long capacity;
+
+	private long size;
+
+	// cached pieces, least recently used first
+	private final LinkedHashMap<Key, ByteBuffer> pieces = new LinkedHashMap<Key, ByteBuffer>(
+			16, 0.75f, true);
+
+	// pieces asked for once, oldest first
+	private final LinkedHashMap<Key, Boolean> ghosts = new LinkedHashMap<Key, Boolean>(
+			16, 0.75f, false) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+			return size() > MAX_GHOSTS;
+		}
+	};
+
+	private long hits;
+
+	private long misses;
+
+	/**
+	 * @param capacity
+	 *            the most bytes of piece data to keep.
+	 */
+	public PieceCache(long capacity) {
+		super();
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns piece <code>index</code> of <code>storage</code>, which is
+	 * <code>length</code> bytes at <code>offset</code>, from the cache or by
+	 * reading it ahead into the cache.
+	 *
+	 * @return a read-only view of the whole piece, or null if the piece is
+	 *         not worth caching yet and should be sent from storage.
+	 */
+	public ByteBuffer get(PieceStorage storage, int index, long offset,
+			int length) throws IOException {
+		Key key = new Key(storage, index);
+		synchronized (this) {
+			ByteBuffer piece = pieces.get(key);
+			if (piece != null) {
+				hits++;
+				return piece.duplicate();
+			}
+			misses++;
+			if (length > capacity || ghosts.remove(key) == null) {
+				ghosts.put(key, Boolean.TRUE);
+				return null;
+			}
+		}
+		// read outside the lock; another thread may load the same piece,
+		// in which case the last one wins
+		ByteBuffer piece = ByteBuffer.allocateDirect(length);
+		storage.read(offset, piece);
+		piece.flip();
+		piece = piece.asReadOnlyBuffer();
+		synchronized (this) {
+			ByteBuffer previous = pieces.put(key, piece);
+			if (previous != null) {
+				size -= previous.capacity();
+			}
+			size += length;
+			Iterator<ByteBuffer> iterator = pieces.values().iterator();
+			while (size > capacity && iterator.hasNext()) {
+				size -= iterator.next().capacity();
+				iterator.remove();
+			}
+		}
+		return piece.duplicate();
+	}
+
+	/**
+	 * Drops every piece of <code>storage</code>, e.g. once its download is
+	 * removed.
+	 */
+	public synchronized void invalidate(PieceStorage storage) {
+		Iterator<Map.Entry<Key, ByteBuffer>> iterator = pieces.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Key, ByteBuffer> entry = iterator.next();
+			if (entry.getKey().storage == storage) {
+				size -= entry.getValue().capacity();
+				iterator.remove();
+			}
+		}
+		Iterator<Key> ghost = ghosts.keySet().iterator();
+		while (ghost.hasNext()) {
+			if (ghost.next().storage == storage) {
+				ghost.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of piece data in the cache.
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the share of requests answered from the cache, between 0 and 1.
+	 */
+	public synchronized double getHitRatio() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+}
@@ -0,0 +1,71 @@
+package com.bittorrentclient.services;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import com.bittorrentclient.model.PieceHashes;
+
+/**
+ * The running SHA-1 hash of a piece that is being downloaded. Blocks are fed
+ * to the digest as soon as every block before them has been hashed; blocks
+ * that arrive early wait in memory until the gap in front of them is filled.
+ * The hash is therefore ready almost as soon as the last block arrives, and
+ * the piece never has to be read back from storage.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class PieceDigest {
+
+	private final int index;
+
+	private final PieceHashes hashes;
+
+	private final MessageDigest digest;
+
+	// blocks that arrived before the ones in front of them
+	private final ByteBuffer[] waiting;
+
+	private int nextBlock;
+
+	public PieceDigest(int index, int numberOfBlocks, PieceHashes hashes) {
+		super();
+		this.index = index;
+		this.hashes = hashes;
+		this.digest = PieceVerifier.newDigest();
+		this.waiting = new ByteBuffer[numberOfBlocks];
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Adds block number <code>block</code> of the piece. The buffer is kept
+	 * if the block cannot be hashed yet, so it must not be reused by the
+	 * caller.
+	 *
+	 * @return true if every block of the piece has now been hashed.
+	 */
+	public synchronized boolean update(int block, ByteBuffer data) {
+		if (block != nextBlock) {
+			waiting[block] = data;
+			return false;
+		}
+		digest.update(data);
+		nextBlock++;
+		while (nextBlock < waiting.length && waiting[nextBlock] != null) {
+			digest.update(waiting[nextBlock]);
+			waiting[nextBlock++] = null;
+		}
+		return nextBlock == waiting.length;
+	}
+
+	/**
+	 * Returns true if the hash of all blocks matches the one from the
+	 * .torrent file. Only call this once {@link #update(int, ByteBuffer)}
+	 * returned true.
+	 */
+	public synchronized boolean matches() {
+		return hashes.matches(index, digest.digest());
+	}
+}
@@ -0,0 +1,60 @@
+package com.bittorrentclient.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Where downloaded data lives. Offsets are positions in the torrent's data,
+ * i.e. <code>index * piece_length + begin</code> for a block of a piece.
+ * Implementations must allow concurrent reads and writes of different
+ * regions from several threads.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public interface PieceStorage extends Closeable {
+
+	/**
+	 * Writes all remaining bytes of <code>data</code> at <code>offset</code>.
+	 */
+	void write(long offset, ByteBuffer data) throws IOException;
+
+	/**
+	 * Fills the remaining space of <code>data</code> with the bytes stored at
+	 * <code>offset</code>.
+	 */
+	void read(long offset, ByteBuffer data) throws IOException;
+
+	/**
+	 * Returns a writable view of <code>length</code> bytes at
+	 * <code>offset</code>, so a block can be read from the network directly
+	 * into storage without an intermediate copy.
+	 *
+	 * @return the view, or null if this storage cannot provide one for the
+	 *         region; callers then use {@link #write(long, ByteBuffer)}.
+	 */
+	ByteBuffer map(long offset, int length) throws IOException;
+
+	/**
+	 * Writes up to <code>length</code> bytes stored at <code>offset</code> to
+	 * <code>target</code>, without copying them through the Java heap where
+	 * the storage allows it. Used to send blocks to peers.
+	 *
+	 * @return the number of bytes written, which may be fewer than
+	 *         <code>length</code> when <code>target</code> is non-blocking
+	 *         and cannot take more right now.
+	 */
+	long transferTo(long offset, long length, WritableByteChannel target)
+			throws IOException;
+
+	/**
+	 * Forces everything written so far out to disk.
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Returns the total number of bytes of the torrent's data.
+	 */
+	long size();
+}
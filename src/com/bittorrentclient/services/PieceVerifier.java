@@ -0,0 +1,207 @@
+package com.bittorrentclient.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.bittorrentclient.model.PieceHashes;
+import com.bittorrentclient.model.TorrentFile;
+
+/**
+ * Checks pieces against the SHA-1 hashes of the .torrent file on a fixed pool
+ * of worker threads, one per core by default, so hashing never runs on a
+ * thread that reads from sockets. Downloads hash each block as it arrives
+ * through {@link #hashBlock(PieceDigest, int, ByteBuffer, Callback)}; data
+ * that is already on disk is checked with
+ * {@link #recheck(PieceStorage, TorrentFile, Callback, Progress)}.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class PieceVerifier {
+
+	public static final int DEFAULT_THREADS = Runtime.getRuntime()
+			.availableProcessors();
+
+	// A recheck reads this much data at a time, rounded down to whole
+	// pieces, and keeps at most RECHECK_MEMORY bytes of it in memory.
+	private static final int RECHECK_CHUNK_SIZE = 1 << 23;
+	private static final int RECHECK_MEMORY = 1 << 26;
+
+	/**
+	 * Receives the outcome of a verification, on a hashing thread.
+	 */
+	public interface Callback {
+		void verified(int index, boolean valid);
+	}
+
+	/**
+	 * Receives the progress of a recheck, on a hashing thread.
+	 */
+	public interface Progress {
+		void checked(int pieces, int numberOfPieces);
+	}
+
+	private final ExecutorService executor;
+
+	private final int threads;
+
+	private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			return newDigest();
+		}
+	};
+
+	public PieceVerifier(int threads) {
+		super();
+		this.threads = threads;
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task,
+								"piece-verifier-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Returns a new SHA-1 MessageDigest.
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(
+					"\"SHA-1\" is not a valid algorithm name.", e);
+		}
+	}
+
+	/**
+	 * Queues block number <code>block</code> of a piece for hashing. The
+	 * remaining bytes of <code>data</code> are copied before the call
+	 * returns, so the caller may reuse the buffer. <code>callback</code> is
+	 * told the result once this or a later block completes the piece.
+	 */
+	public void hashBlock(final PieceDigest digest, final int block,
+			ByteBuffer data, final Callback callback) {
+		final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+		copy.put(data.duplicate());
+		copy.flip();
+		executor.execute(new Runnable() {
+			public void run() {
+				if (digest.update(block, copy)) {
+					callback.verified(digest.getIndex(), digest.matches());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Checks every piece in <code>storage</code> against its hash. The
+	 * calling thread reads the data front to back in chunks of several
+	 * pieces, so the disk sees large sequential reads, while the pieces of
+	 * each chunk are hashed in parallel on the pool. Returns once every piece
+	 * has been checked; <code>callback</code> is told the result of each
+	 * piece as soon as it is known.
+	 *
+	 * @param progress
+	 *            told how far the check got, at most once per percent; may be
+	 *            null.
+	 * @throws RuntimeException
+	 *             the first one thrown by <code>callback</code> or
+	 *             <code>progress</code>; the check stops reading once it is
+	 *             thrown.
+	 */
+	public void recheck(PieceStorage storage, TorrentFile torrentFile,
+			final Callback callback, final Progress progress)
+			throws IOException, InterruptedException {
+		final int pieceLength = torrentFile.piece_length;
+		final PieceHashes hashes = torrentFile.piece_hashes;
+		final int numberOfPieces = hashes.size();
+		int piecesPerChunk = Math.max(1, RECHECK_CHUNK_SIZE / pieceLength);
+		int chunkSize = piecesPerChunk * pieceLength;
+		int numberOfBuffers = Math.max(2,
+				Math.min(threads + 1, RECHECK_MEMORY / chunkSize));
+
+		final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<ByteBuffer>(
+				numberOfBuffers);
+		for (int i = 0; i < numberOfBuffers; i++) {
+			freeBuffers.add(ByteBuffer.allocateDirect(chunkSize));
+		}
+		final CountDownLatch done = new CountDownLatch(numberOfPieces);
+		final AtomicInteger checked = new AtomicInteger();
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+		int first;
+		for (first = 0; first < numberOfPieces
+				&& failure.get() == null; first += piecesPerChunk) {
+			final ByteBuffer chunk = freeBuffers.take();
+			long offset = (long) first * pieceLength;
+			chunk.clear();
+			chunk.limit((int) Math.min(chunkSize, storage.size() - offset));
+			storage.read(offset, chunk);
+			chunk.flip();
+
+			final int last = Math.min(first + piecesPerChunk, numberOfPieces);
+			final AtomicInteger unhashed = new AtomicInteger(last - first);
+			for (int index = first; index < last; index++) {
+				final int piece = index;
+				final ByteBuffer data = chunk.duplicate();
+				data.position((piece - first) * pieceLength);
+				data.limit(Math.min(data.position() + pieceLength,
+						chunk.limit()));
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							MessageDigest digest = digests.get();
+							digest.reset();
+							digest.update(data);
+							callback.verified(piece,
+									hashes.matches(piece, digest.digest()));
+							int count = checked.incrementAndGet();
+							long percent = count * 100L / numberOfPieces;
+							if (progress != null && percent
+									!= (count - 1) * 100L / numberOfPieces) {
+								progress.checked(count, numberOfPieces);
+							}
+						} catch (RuntimeException e) {
+							failure.compareAndSet(null, e);
+						} finally {
+							if (unhashed.decrementAndGet() == 0) {
+								freeBuffers.add(chunk);
+							}
+							done.countDown();
+						}
+					}
+				});
+			}
+		}
+		// the pieces never read after a failure
+		for (int index = first; index < numberOfPieces; index++) {
+			done.countDown();
+		}
+		done.await();
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
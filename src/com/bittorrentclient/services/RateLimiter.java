@@ -0,0 +1,160 @@
+package com.bittorrentclient.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket limiting how many bytes per second may be transferred.
+ * Limiters form a chain: bytes granted by a peer's limiter must also be
+ * granted by its torrent's limiter, and then by the global one, so one
+ * connection is held to all three rates at once.
+ *
+ * The bucket is a single {@link AtomicLong}: the time at which it is (or was)
+ * empty. The tokens available are the time since then multiplied by the
+ * rate, capped at a short burst, and taking tokens moves that time forward
+ * with one compare-and-set. No lock is taken, so the event loop threads
+ * sharing the global limiter never wait on each other.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class RateLimiter {
+
+	public static final long UNLIMITED = 0;
+
+	// A bucket holds at most this much time's worth of tokens...
+	private static final long BURST_NANOS = 100000000L;
+
+	// ...but always enough for a couple of blocks.
+	private static final int MIN_BURST = 32768;
+
+	// Fewer tokens than this are not handed out unless fewer are wanted, so
+	// a busy connection is not woken for every few bytes that trickle in.
+	private static final int MIN_GRANT = 4096;
+
+	// How long acquire() sleeps when no tokens are left.
+	private static final int WAIT_INTERVAL = 10;
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private volatile long rate;
+
+	private volatile RateLimiter parent;
+
+	private final AtomicLong emptyAt = new AtomicLong(System.nanoTime());
+
+	/**
+	 * @param rate
+	 *            bytes per second, or {@link #UNLIMITED}.
+	 * @param parent
+	 *            the limiter that must also grant every byte; may be null.
+	 */
+	public RateLimiter(long rate, RateLimiter parent) {
+		super();
+		this.rate = rate;
+		this.parent = parent;
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Changes the rate; takes effect immediately.
+	 */
+	public void setRate(long rate) {
+		this.rate = rate;
+	}
+
+	public RateLimiter getParent() {
+		return parent;
+	}
+
+	public void setParent(RateLimiter parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Returns true if this limiter or one of its parents has a rate set.
+	 */
+	public boolean isLimited() {
+		for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+			if (limiter.rate > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Takes up to <code>wanted</code> bytes from this limiter and its
+	 * parents without waiting.
+	 *
+	 * @return the number of bytes that may be transferred now, possibly 0.
+	 *         Unless fewer are wanted, at least a few kilobytes are granted
+	 *         or none at all.
+	 */
+	public int request(int wanted) {
+		int granted = take(wanted);
+		RateLimiter parent = this.parent;
+		if (granted > 0 && parent != null) {
+			int passed = parent.request(granted);
+			if (passed < granted) {
+				refund(granted - passed);
+			}
+			granted = passed;
+		}
+		return granted;
+	}
+
+	/**
+	 * Returns bytes that were granted but not transferred to this limiter and
+	 * its parents.
+	 */
+	public void giveBack(int unused) {
+		for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+			limiter.refund(unused);
+		}
+	}
+
+	/**
+	 * Takes <code>bytes</code> from this limiter and its parents, sleeping
+	 * until they have all been granted. For blocking connections.
+	 */
+	public void acquire(int bytes) throws InterruptedException {
+		while (bytes > 0) {
+			int granted = request(bytes);
+			bytes -= granted;
+			if (bytes > 0 && granted == 0) {
+				Thread.sleep(WAIT_INTERVAL);
+			}
+		}
+	}
+
+	private int take(int wanted) {
+		long rate = this.rate;
+		if (rate <= 0 || wanted <= 0) {
+			return wanted;
+		}
+		long burst = Math.max(BURST_NANOS, MIN_BURST * NANOS_PER_SECOND / rate);
+		long now = System.nanoTime();
+		while (true) {
+			long empty = emptyAt.get();
+			long start = empty - (now - burst) > 0 ? empty : now - burst;
+			long available = (now - start) * rate / NANOS_PER_SECOND;
+			if (available < Math.min(wanted, MIN_GRANT)) {
+				return 0;
+			}
+			int granted = (int) Math.min(wanted, available);
+			if (emptyAt.compareAndSet(empty, start + granted
+					* NANOS_PER_SECOND / rate)) {
+				return granted;
+			}
+		}
+	}
+
+	private void refund(int unused) {
+		long rate = this.rate;
+		if (rate > 0 && unused > 0) {
+			emptyAt.addAndGet(-unused * NANOS_PER_SECOND / rate);
+		}
+	}
+}
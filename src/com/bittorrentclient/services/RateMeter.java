@@ -0,0 +1,61 @@
+package com.bittorrentclient.services;
+
+/**
+ * Measures the rate of a transfer, such as the blocks received from one
+ * peer. One thread adds the bytes as they are transferred; another samples
+ * the rate now and then, and the rate is smoothed over successive samples so
+ * a single burst or stall does not decide a peer's standing.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class RateMeter {
+
+	// weight of the newest sample in the smoothed rate
+	private static final double SMOOTHING = 0.5;
+
+	private volatile long total;
+
+	// only touched by the sampling thread
+	private long sampledTotal;
+	private long sampledAt;
+	private double rate;
+
+	public RateMeter() {
+		super();
+		this.sampledAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Counts <code>bytes</code> more. Must always be called from the same
+	 * thread.
+	 */
+	public void add(int bytes) {
+		total += bytes;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Takes a sample and returns the smoothed rate in bytes per second.
+	 */
+	public double sample(long now) {
+		long total = this.total;
+		if (now > sampledAt) {
+			double current = (total - sampledTotal) * 1000.0
+					/ (now - sampledAt);
+			rate = SMOOTHING * current + (1 - SMOOTHING) * rate;
+			sampledTotal = total;
+			sampledAt = now;
+		}
+		return rate;
+	}
+
+	/**
+	 * Returns the rate as of the last sample, in bytes per second.
+	 */
+	public double getRate() {
+		return rate;
+	}
+}
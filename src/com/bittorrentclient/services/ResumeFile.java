@@ -0,0 +1,213 @@
+package com.bittorrentclient.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.bittorrentclient.model.TorrentFile;
+
+/**
+ * Remembers how far a download got, so a restarted client continues where it
+ * stopped instead of downloading or hashing everything again. There is one
+ * resume file per torrent, named after its info hash, holding the completed
+ * pieces, the received blocks of unfinished pieces and the length and
+ * modification time of every data file.
+ *
+ * The state is only trusted while the data files are exactly as they were
+ * when it was saved; if one of them changed since, {@link #load()} returns
+ * null and the data has to be checked against the piece hashes instead.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class ResumeFile {
+
+	private static final int MAGIC = 0x42545246; // "BTRF"
+
+	private static final int VERSION = 1;
+
+	/**
+	 * The download progress stored in a resume file.
+	 */
+	public static class State {
+		public final BitSet completedPieces;
+
+		// piece index -> blocks of the piece that are in storage
+		public final Map<Integer, BitSet> partialPieces;
+
+		public State(BitSet completedPieces,
+				Map<Integer, BitSet> partialPieces) {
+			this.completedPieces = completedPieces;
+			this.partialPieces = partialPieces;
+		}
+	}
+
+	private final File file;
+
+	private final TorrentFile torrentFile;
+
+	private final File[] dataFiles;
+
+	/**
+	 * @param directory
+	 *            where the resume file is kept.
+	 * @param dataFiles
+	 *            the files holding the torrent's data.
+	 */
+	public ResumeFile(File directory, TorrentFile torrentFile,
+			File... dataFiles) {
+		super();
+		this.file = new File(directory,
+				torrentFile.info_hash_as_hex + ".resume");
+		this.torrentFile = torrentFile;
+		this.dataFiles = dataFiles;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes <code>state</code> to a temporary file and renames it over the
+	 * resume file, so a crash while saving leaves the previous state intact.
+	 * The storage must be flushed first; the modification times recorded are
+	 * the ones the data files have now.
+	 */
+	public void save(State state) throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temporary);
+		try {
+			CheckedOutputStream checked = new CheckedOutputStream(
+					new BufferedOutputStream(stream), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(torrentFile.info_hash_as_binary);
+			out.writeInt(torrentFile.piece_hashes.size());
+			out.writeInt(torrentFile.piece_length);
+			out.writeInt(dataFiles.length);
+			for (File dataFile : dataFiles) {
+				out.writeLong(dataFile.length());
+				out.writeLong(dataFile.lastModified());
+			}
+			writeBits(out, state.completedPieces);
+			out.writeInt(state.partialPieces.size());
+			for (Map.Entry<Integer, BitSet> entry : state.partialPieces
+					.entrySet()) {
+				out.writeInt(entry.getKey());
+				writeBits(out, entry.getValue());
+			}
+			out.flush();
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeBits(DataOutputStream out, BitSet bits)
+			throws IOException {
+		byte[] bytes = bits.toByteArray();
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads the saved state.
+	 *
+	 * @return the state, or null if there is no resume file, it is damaged,
+	 *         belongs to another torrent, or a data file was changed since it
+	 *         was saved.
+	 */
+	public State load() {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				return read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Error: could not read " + file + ": "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
+	private State read(DataInputStream stream) throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(stream,
+				new CRC32());
+		DataInputStream in = new DataInputStream(checked);
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("not a resume file");
+		}
+		byte[] infoHash = new byte[20];
+		in.readFully(infoHash);
+		int numberOfPieces = torrentFile.piece_hashes.size();
+		if (!Arrays.equals(infoHash, torrentFile.info_hash_as_binary)
+				|| in.readInt() != numberOfPieces
+				|| in.readInt() != torrentFile.piece_length
+				|| in.readInt() != dataFiles.length) {
+			throw new IOException("saved for a different torrent");
+		}
+		boolean changed = false;
+		for (File dataFile : dataFiles) {
+			long length = in.readLong();
+			long modified = in.readLong();
+			changed |= dataFile.length() != length
+					|| dataFile.lastModified() != modified;
+		}
+		BitSet completedPieces = readBits(in, numberOfPieces);
+		Map<Integer, BitSet> partialPieces = new TreeMap<Integer, BitSet>();
+		for (int i = in.readInt(); i > 0; i--) {
+			int index = in.readInt();
+			if (index < 0 || index >= numberOfPieces) {
+				throw new IOException("bad piece index " + index);
+			}
+			partialPieces.put(index,
+					readBits(in, torrentFile.piece_length));
+		}
+		long checksum = checked.getChecksum().getValue();
+		if (stream.readLong() != checksum) {
+			throw new IOException("checksum mismatch");
+		}
+		if (changed) {
+			System.out.println("The data files changed since " + file
+					+ " was saved");
+			return null;
+		}
+		return new State(completedPieces, partialPieces);
+	}
+
+	private static BitSet readBits(DataInputStream in, int maxBits)
+			throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > maxBits / 8 + 1) {
+			throw new IOException("bad bitfield length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return BitSet.valueOf(bytes);
+	}
+}
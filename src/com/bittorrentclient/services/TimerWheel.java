@@ -0,0 +1,154 @@
+package com.bittorrentclient.services;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs tasks after a delay, for any number of timers on a single thread.
+ * Timers are kept in a ring of slots, one slot per tick: a timer goes into
+ * the slot its deadline falls in and the thread only looks at one slot per
+ * tick, so scheduling and cancelling take constant time however many timers
+ * there are. A timer further away than one turn of the ring waits in its
+ * slot for the turns in between.
+ *
+ * Deadlines are rounded up to whole ticks, and tasks run on the wheel's
+ * thread one after the other, so they should be short: anything that blocks
+ * should be handed to another thread.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class TimerWheel {
+
+	/**
+	 * A scheduled task, which can be cancelled until it has run.
+	 */
+	public static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	private final long tickMillis;
+
+	private final List<List<Timeout>> slots;
+
+	private final Thread thread;
+
+	private final long startedAt;
+
+	// the number of ticks processed so far
+	private long tick;
+
+	private volatile boolean running;
+
+	/**
+	 * @param tickMillis
+	 *            the length of a tick, which is how precise deadlines are.
+	 * @param numberOfSlots
+	 *            the ticks in one turn of the ring; timers due within a turn
+	 *            are found without being looked at more than once.
+	 */
+	public TimerWheel(String name, long tickMillis, int numberOfSlots) {
+		super();
+		this.tickMillis = tickMillis;
+		this.slots = new ArrayList<List<Timeout>>(numberOfSlots);
+		for (int i = 0; i < numberOfSlots; i++) {
+			slots.add(new ArrayList<Timeout>());
+		}
+		this.startedAt = System.nanoTime();
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				TimerWheel.this.run();
+			}
+		}, name);
+		this.thread.setDaemon(true);
+	}
+
+	public void start() {
+		running = true;
+		thread.start();
+	}
+
+	public void shutdown() {
+		running = false;
+		thread.interrupt();
+	}
+
+	/**
+	 * Runs <code>task</code> on the wheel's thread once
+	 * <code>delayMillis</code> have passed.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		// the tick after which the deadline has passed
+		long deadline = (elapsedMillis() + Math.max(0, delayMillis)
+				+ tickMillis - 1) / tickMillis;
+		Timeout timeout = new Timeout(task, deadline);
+		synchronized (this) {
+			// a deadline already passed goes to the next slot looked at
+			long slot = Math.max(deadline, tick + 1);
+			slots.get((int) (slot % slots.size())).add(timeout);
+		}
+		return timeout;
+	}
+
+	private long elapsedMillis() {
+		return (System.nanoTime() - startedAt) / 1000000;
+	}
+
+	private void run() {
+		List<Timeout> due = new ArrayList<Timeout>();
+		while (running) {
+			long sleep;
+			synchronized (this) {
+				sleep = (tick + 1) * tickMillis - elapsedMillis();
+			}
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			}
+			synchronized (this) {
+				tick++;
+				Iterator<Timeout> iterator = slots.get(
+						(int) (tick % slots.size())).iterator();
+				while (iterator.hasNext()) {
+					Timeout timeout = iterator.next();
+					if (timeout.cancelled) {
+						iterator.remove();
+					} else if (timeout.deadline <= tick) {
+						iterator.remove();
+						due.add(timeout);
+					}
+				}
+			}
+			for (Timeout timeout : due) {
+				if (timeout.cancelled) {
+					continue;
+				}
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					// one failing task must not stop the others
+					e.printStackTrace();
+				}
+			}
+			due.clear();
+		}
+	}
+}
@@ -0,0 +1,572 @@
+package com.bittorrentclient.services;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.bittorrentclient.model.Announce;
+import com.bittorrentclient.model.TrackerResponse;
+
+/**
+ * Announces to UDP trackers (BEP 15). An announce is a connect request, to
+ * get a connection id from the tracker, followed by the announce itself:
+ * two round trips of a hundred bytes or so, against a TCP handshake and an
+ * HTTP request and response for an HTTP tracker.
+ *
+ * Every announce goes through one {@link DatagramChannel}. Requests are told
+ * apart by their transaction ids, and one thread receives all the replies
+ * and hands each to the request it answers, so any number of announces can
+ * be in flight at once, to one tracker or to many. A tracker's connection id
+ * is kept for the minute it is valid and shared by every announce to that
+ * tracker, and announces that need one while it is being fetched wait for
+ * the same connect.
+ *
+ * A request that is not answered is sent again after the timeout, which
+ * doubles every time up to {@link #DEFAULT_RETRIES} times, as BEP 15
+ * suggests (15 s, 30 s, 60 s...); it then fails. An announce the tracker
+ * answers with an error after it went out with a connection id kept from an
+ * earlier connect is sent once more with a new one, since the tracker may
+ * have let the old one expire early.
+ *
+ * @author Sahil Gupta and Tioluwa Olarewaju
+ */
+public class UdpTracker {
+
+	/**
+	 * Learns how an announce made with
+	 * {@link UdpTracker#announce(String, Announce, Callback)} went. Called on
+	 * the tracker's receiving or timer thread, so it should not block.
+	 */
+	public interface Callback {
+		/**
+		 * The tracker answered; the response may be a failure.
+		 */
+		void completed(TrackerResponse response);
+
+		/**
+		 * The tracker could not be reached.
+		 */
+		void failed(IOException e);
+	}
+
+	public static final int DEFAULT_TIMEOUT = 15000;
+
+	public static final int DEFAULT_RETRIES = 8;
+
+	// identifies the protocol in a connect request
+	private static final long PROTOCOL_ID = 0x41727101980L;
+
+	private static final int ACTION_CONNECT = 0;
+	private static final int ACTION_ANNOUNCE = 1;
+	private static final int ACTION_ERROR = 3;
+
+	private static final int EVENT_NONE = 0;
+	private static final int EVENT_COMPLETED = 1;
+	private static final int EVENT_STARTED = 2;
+	private static final int EVENT_STOPPED = 3;
+
+	private static final int CONNECT_LENGTH = 16;
+	private static final int ANNOUNCE_LENGTH = 98;
+	private static final int ANNOUNCE_RESPONSE_LENGTH = 20;
+
+	// a connection id may be used for a minute after it was received
+	private static final int CONNECTION_ID_LIFETIME = 60000;
+
+	// the largest UDP payload
+	private static final int MAX_DATAGRAM = 65507;
+
+	private static final int TICK = 100;
+
+	private static final int SLOTS = 512;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/*
+	 * A request waiting for its reply, sent again on every timeout.
+	 */
+	private abstract class Transaction implements Runnable {
+		final InetSocketAddress tracker;
+		ByteBuffer datagram;
+		int transactionId;
+		int attempt;
+		volatile TimerWheel.Timeout timeout;
+
+		Transaction(InetSocketAddress tracker) {
+			this.tracker = tracker;
+		}
+
+		void send() {
+			synchronized (transactions) {
+				do {
+					transactionId = random.nextInt();
+				} while (transactions.containsKey(transactionId));
+				transactions.put(transactionId, this);
+			}
+			datagram.putInt(12, transactionId);
+			transmit();
+		}
+
+		void transmit() {
+			timeout = wheel.schedule(this, (long) initialTimeout << attempt);
+			try {
+				channel.send(datagram.duplicate(), tracker);
+			} catch (IOException e) {
+				// like a lost datagram; the timeout tries again
+			}
+		}
+
+		/*
+		 * The timeout expired before the tracker answered.
+		 */
+		public void run() {
+			synchronized (transactions) {
+				if (transactions.remove(transactionId) == null) {
+					// answered meanwhile
+					return;
+				}
+			}
+			if (++attempt > retries) {
+				fail(new IOException("No answer from tracker " + tracker
+						+ " after " + attempt + " attempts"));
+			} else {
+				retry();
+			}
+		}
+
+		void retry() {
+			synchronized (transactions) {
+				transactions.put(transactionId, this);
+			}
+			transmit();
+		}
+
+		abstract void answered(int action, ByteBuffer reply);
+
+		abstract void fail(IOException e);
+	}
+
+	/*
+	 * Asks a tracker for a connection id, on behalf of every announce to it
+	 * that is waiting for one.
+	 */
+	private class Connect extends Transaction {
+		final Connection connection;
+
+		Connect(Connection connection) {
+			super(connection.tracker);
+			this.connection = connection;
+			datagram = ByteBuffer.allocate(CONNECT_LENGTH);
+			datagram.putLong(0, PROTOCOL_ID);
+			datagram.putInt(8, ACTION_CONNECT);
+		}
+
+		void answered(int action, ByteBuffer reply) {
+			List<AnnounceRequest> waiting;
+			synchronized (connection) {
+				connection.connecting = null;
+				waiting = connection.waiting;
+				connection.waiting = new ArrayList<AnnounceRequest>();
+				if (action == ACTION_CONNECT
+						&& reply.remaining() >= CONNECT_LENGTH) {
+					connection.id = reply.getLong(8);
+					connection.expiresAt = System.currentTimeMillis()
+							+ CONNECTION_ID_LIFETIME;
+				}
+			}
+			for (AnnounceRequest request : waiting) {
+				if (action == ACTION_CONNECT) {
+					request.connected(connection.id, attempt);
+				} else {
+					request.answered(action, reply.duplicate());
+				}
+			}
+		}
+
+		void fail(IOException e) {
+			List<AnnounceRequest> waiting;
+			synchronized (connection) {
+				connection.connecting = null;
+				waiting = connection.waiting;
+				connection.waiting = new ArrayList<AnnounceRequest>();
+			}
+			for (AnnounceRequest request : waiting) {
+				request.fail(e);
+			}
+		}
+	}
+
+	private class AnnounceRequest extends Transaction {
+		final Connection connection;
+		final Announce announce;
+		final Callback callback;
+		// the last send used a connection id kept from an earlier connect
+		boolean cachedId;
+		// already sent again with a new connection id after an error
+		boolean reconnected;
+
+		AnnounceRequest(Connection connection, Announce announce,
+				Callback callback) {
+			super(connection.tracker);
+			this.connection = connection;
+			this.announce = announce;
+			this.callback = callback;
+		}
+
+		/*
+		 * Sends the announce with connection id <code>id</code>, which took
+		 * <code>attempts</code> timeouts to get.
+		 */
+		void connected(long id, int attempts) {
+			attempt = attempts;
+			if (datagram == null) {
+				datagram = announceDatagram(announce);
+			}
+			datagram.putLong(0, id);
+			send();
+		}
+
+		@Override
+		void retry() {
+			// a connection id that expired since is no longer accepted
+			connect(this);
+		}
+
+		void answered(int action, ByteBuffer reply) {
+			TrackerResponse response = new TrackerResponse();
+			if (action == ACTION_ANNOUNCE
+					&& reply.remaining() >= ANNOUNCE_RESPONSE_LENGTH) {
+				response.interval = reply.getInt(8);
+				response.incomplete = reply.getInt(12) & 0xffffffffL;
+				response.complete = reply.getInt(16) & 0xffffffffL;
+				reply.position(ANNOUNCE_RESPONSE_LENGTH);
+				HttpTracker.decodeCompactPeers(reply, tracker.getAddress()
+						instanceof Inet6Address ? HttpTracker.IPV6_PEER_LENGTH
+						: HttpTracker.IPV4_PEER_LENGTH, response.peers);
+			} else if (action == ACTION_ERROR) {
+				// the error may be about the connection id
+				synchronized (connection) {
+					if (datagram == null
+							|| connection.id == datagram.getLong(0)) {
+						connection.expiresAt = 0;
+					}
+				}
+				if (cachedId && !reconnected) {
+					reconnected = true;
+					connect(this);
+					return;
+				}
+				reply.position(8);
+				response.failure_reason = UTF8.decode(reply).toString();
+			} else {
+				response.failure_reason = "Unexpected reply from tracker "
+						+ tracker;
+			}
+			callback.completed(response);
+		}
+
+		void fail(IOException e) {
+			callback.failed(e);
+		}
+	}
+
+	/*
+	 * What is known of one tracker. Guarded by itself.
+	 */
+	private static class Connection {
+		final InetSocketAddress tracker;
+		long id;
+		long expiresAt;
+		Connect connecting;
+		List<AnnounceRequest> waiting = new ArrayList<AnnounceRequest>();
+
+		Connection(InetSocketAddress tracker) {
+			this.tracker = tracker;
+		}
+	}
+
+	private final int initialTimeout;
+
+	private final int retries;
+
+	private final DatagramChannel channel;
+
+	private final TimerWheel wheel = new TimerWheel("udp-tracker-timer",
+			TICK, SLOTS);
+
+	private final Thread receiver;
+
+	private final Random random = new Random();
+
+	// identifies us to trackers across changes of address
+	private final int key = random.nextInt();
+
+	// the requests waiting for a reply, by transaction id
+	private final Map<Integer, Transaction> transactions = new HashMap<Integer, Transaction>();
+
+	private final ConcurrentMap<InetSocketAddress, Connection> connections = new ConcurrentHashMap<InetSocketAddress, Connection>();
+
+	private volatile boolean closed;
+
+	/**
+	 * Opens the channel announces are sent from, on any free port.
+	 *
+	 * @param initialTimeout
+	 *            how long to wait for the first reply to a request before
+	 *            sending it again, in milliseconds; doubled on every retry.
+	 * @param retries
+	 *            how many times a request is sent again before giving up.
+	 */
+	public UdpTracker(int initialTimeout, int retries) throws IOException {
+		super();
+		this.initialTimeout = initialTimeout;
+		this.retries = retries;
+		this.channel = DatagramChannel.open();
+		this.channel.bind(null);
+		this.receiver = new Thread(new Runnable() {
+			public void run() {
+				receive();
+			}
+		}, "udp-tracker");
+		this.receiver.setDaemon(true);
+		this.wheel.start();
+		this.receiver.start();
+	}
+
+	public UdpTracker() throws IOException {
+		this(DEFAULT_TIMEOUT, DEFAULT_RETRIES);
+	}
+
+	/**
+	 * Sends <code>announce</code> to the tracker at <code>announceUrl</code>,
+	 * a <code>udp://host:port</code> URL, and returns at once;
+	 * <code>callback</code> learns the outcome.
+	 */
+	public void announce(String announceUrl, Announce announce,
+			Callback callback) {
+		InetSocketAddress tracker;
+		try {
+			if (closed) {
+				throw new IOException("The UDP tracker client is closed");
+			}
+			tracker = resolve(announceUrl);
+		} catch (IOException e) {
+			callback.failed(e);
+			return;
+		}
+		Connection connection = connections.get(tracker);
+		if (connection == null) {
+			connection = new Connection(tracker);
+			Connection existing = connections.putIfAbsent(tracker,
+					connection);
+			if (existing != null) {
+				connection = existing;
+			}
+		}
+		connect(new AnnounceRequest(connection, announce, callback));
+	}
+
+	/**
+	 * Sends <code>announce</code> to the tracker at <code>announceUrl</code>
+	 * and waits for its response, which may be a failure.
+	 *
+	 * @throws IOException
+	 *             if the tracker did not answer.
+	 */
+	public TrackerResponse announce(String announceUrl, Announce announce)
+			throws IOException {
+		final TrackerResponse[] response = new TrackerResponse[1];
+		final IOException[] failure = new IOException[1];
+		final Object lock = new Object();
+		announce(announceUrl, announce, new Callback() {
+			public void completed(TrackerResponse r) {
+				synchronized (lock) {
+					response[0] = r;
+					lock.notifyAll();
+				}
+			}
+
+			public void failed(IOException e) {
+				synchronized (lock) {
+					failure[0] = e;
+					lock.notifyAll();
+				}
+			}
+		});
+		synchronized (lock) {
+			while (response[0] == null && failure[0] == null) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"Interrupted while announcing to " + announceUrl);
+				}
+			}
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return response[0];
+	}
+
+	/**
+	 * Stops receiving and fails the announces still waiting for a reply.
+	 */
+	public void close() {
+		closed = true;
+		wheel.shutdown();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+		List<Transaction> pending;
+		synchronized (transactions) {
+			pending = new ArrayList<Transaction>(transactions.values());
+			transactions.clear();
+		}
+		for (Transaction transaction : pending) {
+			transaction.fail(new IOException(
+					"The UDP tracker client was closed"));
+		}
+	}
+
+	private static InetSocketAddress resolve(String announceUrl)
+			throws IOException {
+		try {
+			URI uri = new URI(announceUrl);
+			if (!"udp".equals(uri.getScheme()) || uri.getHost() == null
+					|| uri.getPort() < 0) {
+				throw new IOException("Not a UDP tracker: " + announceUrl);
+			}
+			InetSocketAddress address = new InetSocketAddress(uri.getHost(),
+					uri.getPort());
+			if (address.isUnresolved()) {
+				throw new IOException("Unknown tracker host " + uri.getHost());
+			}
+			return address;
+		} catch (URISyntaxException e) {
+			throw new IOException("Bad tracker URL " + announceUrl);
+		}
+	}
+
+	/*
+	 * Sends the request's announce if the tracker's connection id is still
+	 * valid, and otherwise waits for a connect, starting one if none is under
+	 * way.
+	 */
+	private void connect(AnnounceRequest request) {
+		Connection connection = request.connection;
+		Connect connect = null;
+		boolean valid;
+		long id;
+		synchronized (connection) {
+			valid = connection.expiresAt > System.currentTimeMillis();
+			id = connection.id;
+			request.cachedId = valid;
+			if (!valid) {
+				connection.waiting.add(request);
+				if (connection.connecting == null) {
+					connect = new Connect(connection);
+					// retries of an announce continue the same count
+					connect.attempt = request.attempt;
+					connection.connecting = connect;
+				}
+			}
+		}
+		if (valid) {
+			request.connected(id, request.attempt);
+		} else if (connect != null) {
+			connect.send();
+		}
+	}
+
+	private ByteBuffer announceDatagram(Announce announce) {
+		ByteBuffer datagram = ByteBuffer.allocate(ANNOUNCE_LENGTH);
+		datagram.putLong(0);
+		datagram.putInt(ACTION_ANNOUNCE);
+		datagram.putInt(0);
+		datagram.put(announce.info_hash);
+		datagram.put(announce.peer_id);
+		datagram.putLong(announce.downloaded);
+		datagram.putLong(announce.left);
+		datagram.putLong(announce.uploaded);
+		datagram.putInt(event(announce.event));
+		// let the tracker use the address the datagram came from
+		datagram.putInt(0);
+		datagram.putInt(key);
+		datagram.putInt(announce.numwant);
+		datagram.putShort((short) announce.port);
+		datagram.flip();
+		return datagram;
+	}
+
+	private static int event(String event) {
+		if (Announce.EVENT_COMPLETED.equals(event)) {
+			return EVENT_COMPLETED;
+		} else if (Announce.EVENT_STARTED.equals(event)) {
+			return EVENT_STARTED;
+		} else if (Announce.EVENT_STOPPED.equals(event)) {
+			return EVENT_STOPPED;
+		}
+		return EVENT_NONE;
+	}
+
+	/*
+	 * Runs on the receiving thread until the channel is closed, handing
+	 * every reply to the request it answers.
+	 */
+	private void receive() {
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+		while (true) {
+			buffer.clear();
+			InetSocketAddress source;
+			try {
+				source = (InetSocketAddress) channel.receive(buffer);
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				// e.g. an ICMP error for an unreachable tracker; the
+				// request times out
+				continue;
+			}
+			buffer.flip();
+			if (buffer.remaining() < 8) {
+				continue;
+			}
+			Transaction transaction;
+			synchronized (transactions) {
+				transaction = transactions.get(buffer.getInt(4));
+				if (transaction == null
+						|| !transaction.tracker.equals(source)) {
+					// late, duplicate or not from the tracker asked
+					continue;
+				}
+				transactions.remove(transaction.transactionId);
+			}
+			transaction.timeout.cancel();
+			// the buffer is reused for the next datagram
+			ByteBuffer reply = ByteBuffer.allocate(buffer.remaining());
+			reply.put(buffer).flip();
+			try {
+				transaction.answered(reply.getInt(0), reply);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
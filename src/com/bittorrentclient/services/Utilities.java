@@ -17,17 +17,27 @@ public class Utilities {
 	/**
 	 * Returns a byte stream from the given file.
 	 * @param file
-	 * @return byte[] File Bytes
+	 * @return byte[] File Bytes, or null if the file cannot be read or is
+	 * too large for an array
 	 */
 	public static byte[] getBytesFromFile(File file) {
 		byte[] bytesArray = null;
 		try {
 			RandomAccessFile raf = new RandomAccessFile(file, "r");
-			bytesArray = new byte[(int)raf.length()];
-			raf.read(bytesArray);
-			raf.close();
+			try {
+				long length = raf.length();
+				if (length > Integer.MAX_VALUE - 8) {
+					System.out.println("File " + file + " is too large to read into memory.");
+					return null;
+				}
+				bytesArray = new byte[(int) length];
+				raf.readFully(bytesArray);
+			} finally {
+				raf.close();
+			}
 		} catch (Exception e) {
 			System.out.println("Random Access File failed.");
+			return null;
 		}
 		return bytesArray;
 	}
@@ -93,7 +103,16 @@ public class Utilities {
 	 * @return decoded peer list
 	 */
 	 public static String[] decodeCompressedPeers(Map map) {
-	        ByteBuffer peers = (ByteBuffer)map.get(ByteBuffer.wrap("peers".getBytes()));
+	        return decodeCompressedPeers((ByteBuffer)map.get(ByteBuffer.wrap("peers".getBytes())));
+	 }
+
+	 /**
+	  * Returns a peer list from the compact "peers" string of a tracker response,
+	  * 6 bytes per peer.
+	  * @param peers the "peers" byte string
+	  * @return decoded peer list
+	  */
+	 public static String[] decodeCompressedPeers(ByteBuffer peers) {
 	        ArrayList<String> peerURLs = new ArrayList<String>();
 	        try {
 	            while (true) {
@@ -264,10 +283,10 @@ public class Utilities {
 	  * @param temp
 	  * @throws IOException
 	  */
-	 public static void saveState (int downloaded, int uploaded, int left, byte[][] fileHeap, File temp) throws IOException { 
+	 public static void saveState (long downloaded, long uploaded, long left, byte[][] fileHeap, File temp) throws IOException { 
 		 FileOutputStream tempOut = new FileOutputStream(temp);  
-		 ByteBuffer intBuffer = ByteBuffer.allocate(12);  
-		 intBuffer.putInt(downloaded).putInt(uploaded).putInt(left);  
+		 ByteBuffer intBuffer = ByteBuffer.allocate(24);  
+		 intBuffer.putLong(downloaded).putLong(uploaded).putLong(left);  
 		 byte[] ints = intBuffer.array();  
 		 // intBuffer.get(ints);  
 		 tempOut.write(ints);  